@@ -0,0 +1,249 @@
+package client;
+
+import server.Frames;
+import java.net.*;
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A few persistent connections to a student server that speak the framed
+ * protocol (see server.Frames). The connections are shared by all threads
+ * that call through the pool: a call writes its request and waits for the
+ * answer with its id, other calls can use the same connection in the
+ * meantime. Every connection has a reader thread that hands the answers to
+ * the waiting calls. A connection that breaks fails its open calls and is
+ * replaced by a new one on the next call.
+ *
+ * A batch (JSON-RPC 2.0 array of calls) is answered with one array, it waits
+ * under the ids of all its calls and gets the array that has any of them.
+ * Requests can also be sent without waiting (callAsync), so several batches
+ * are on the way at the same time, and notifications are sent without
+ * expecting an answer at all.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class RpcConnectionPool implements Closeable {
+
+   public static final int DEFAULT_SIZE = 4;
+   // milliseconds a call waits for its answer
+   public static final long CALL_TIMEOUT = 30000;
+
+   private final String host;
+   private final int port;
+   private final Connection[] connections;
+   private final AtomicInteger next = new AtomicInteger();
+   private volatile boolean closed = false;
+
+   public RpcConnectionPool(String host, int port) {
+      this(host, port, DEFAULT_SIZE);
+   }
+
+   /**
+    * @param size connections to open at most, they are opened on first use
+    */
+   public RpcConnectionPool(String host, int port, int size) {
+      this.host = host;
+      this.port = port;
+      this.connections = new Connection[Math.max(1, size)];
+   }
+
+   /**
+    * Sends the request and waits for the answer with the same id
+    *
+    * @param id      JsonRPC id of the request, unique among the open calls
+    * @param request the JsonRPC request
+    * @return the answer
+    * @throws IOException if the connection broke or there was no answer in
+    *         CALL_TIMEOUT
+    */
+   public String call(int id, String request) throws IOException {
+      return await(callAsync(new int[]{id}, request), id);
+   }
+
+   /**
+    * Sends the request and returns right away
+    *
+    * @param ids     JsonRPC ids of the calls in the request (all of a batch),
+    *                unique among the open calls
+    * @param request a call or a batch
+    * @return completes with the answer, or fails if the connection breaks
+    * @throws IOException if the request could not be sent
+    */
+   public CompletableFuture<String> callAsync(int[] ids, String request) throws IOException {
+      return connection().send(ids, request);
+   }
+
+   /**
+    * Sends a request that is not answered (a notification or a batch of them)
+    */
+   public void send(String request) throws IOException {
+      connection().send(new int[0], request);
+   }
+
+   /**
+    * Waits up to CALL_TIMEOUT for the answer
+    *
+    * @param id used in the error message
+    */
+   public static String await(CompletableFuture<String> answer, int id) throws IOException {
+      try {
+         return answer.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+         throw new IOException(e.getCause().getMessage(), e.getCause());
+      } catch (TimeoutException e) {
+         answer.cancel(false); // takes it out of the waiting calls
+         throw new IOException("No answer for call "+id+" in "+CALL_TIMEOUT+" ms");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException();
+      }
+   }
+
+   /**
+    * @return the next connection round robin, opened if it is not open yet
+    */
+   private Connection connection() throws IOException {
+      if (closed)
+         throw new IOException("Connection pool is closed");
+      int i = Math.floorMod(next.getAndIncrement(), connections.length);
+      synchronized (connections) {
+         Connection c = connections[i];
+         if (c != null && !c.closed)
+            return c;
+      }
+      // connect outside of the lock, a slow connect must not block the calls
+      // on the other connections
+      Connection c = new Connection(new Socket(host, port));
+      synchronized (connections) {
+         Connection other = connections[i];
+         if (other != null && !other.closed) {
+            c.close(new IOException("Not needed"));
+            return other;
+         }
+         connections[i] = c;
+      }
+      return c;
+   }
+
+   public void close() {
+      closed = true;
+      synchronized (connections) {
+         for (Connection c : connections) {
+            if (c != null)
+               c.close(new IOException("Connection pool is closed"));
+         }
+      }
+   }
+
+   /**
+    * One connection and the calls waiting for an answer on it
+    */
+   private static class Connection {
+      private final Socket sock;
+      private final DataOutputStream out;
+      private final Map<Integer, CompletableFuture<String>> waiting = new ConcurrentHashMap<>();
+      private volatile boolean closed = false;
+
+      Connection(Socket sock) throws IOException {
+         this.sock = sock;
+         sock.setTcpNoDelay(true);
+         out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+         DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+         Thread reader = new Thread(() -> read(in), "rpc-reader-" + sock.getLocalPort());
+         reader.setDaemon(true);
+         reader.start();
+      }
+
+      /**
+       * Writes the request, the answer completes the future
+       */
+      CompletableFuture<String> send(int[] ids, String request) throws IOException {
+         CompletableFuture<String> answer = new CompletableFuture<>();
+         for (int i = 0; i < ids.length; i++) {
+            if (waiting.putIfAbsent(ids[i], answer) != null) {
+               forget(ids, i, answer);
+               throw new IOException("Id "+ids[i]+" is in use");
+            }
+         }
+         // however the call ends, its ids are free again
+         answer.whenComplete((response, e) -> forget(ids, ids.length, answer));
+         try {
+            if (closed)
+               throw new IOException("Connection closed");
+            synchronized (out) {
+               Frames.write(out, request);
+            }
+         } catch (IOException e) {
+            close(e);
+            throw e;
+         }
+         if (ids.length == 0)
+            answer.complete(null); // nothing will come back
+         return answer;
+      }
+
+      /**
+       * Takes the first count ids out of the waiting calls
+       */
+      private void forget(int[] ids, int count, CompletableFuture<String> answer) {
+         for (int i = 0; i < count; i++)
+            waiting.remove(ids[i], answer);
+      }
+
+      /**
+       * Hands every answer to the call with its id, until the connection ends
+       */
+      private void read(DataInputStream in) {
+         try {
+            String response;
+            while ((response = Frames.read(in)) != null) {
+               CompletableFuture<String> answer = null;
+               if (response.startsWith("[")) {
+                  // a batch, any of its ids leads to the waiting call
+                  JSONArray batch = new JSONArray(response);
+                  for (int i = 0; i < batch.length() && answer == null; i++) {
+                     JSONObject json = batch.optJSONObject(i);
+                     if (json != null && !json.isNull("id"))
+                        answer = waiting.get(json.getInt("id"));
+                  }
+               } else {
+                  JSONObject json = new JSONObject(response);
+                  if (!json.isNull("id"))
+                     answer = waiting.get(json.getInt("id"));
+               }
+               // without an id there is nothing to match it with
+               if (answer != null)
+                  answer.complete(response);
+            }
+            close(new EOFException("Server closed the connection"));
+         } catch (IOException e) {
+            // a server that has no room answers with bare JSON and closes
+            close(e);
+         } catch (Exception e) {
+            close(new IOException("Invalid answer: "+e.getMessage(), e));
+         }
+      }
+
+      /**
+       * Closes the connection and fails the calls waiting on it
+       */
+      void close(IOException reason) {
+         closed = true;
+         try {
+            sock.close();
+         } catch (IOException e) {
+            // closed already
+         }
+         for (CompletableFuture<String> answer : waiting.values())
+            answer.completeExceptionally(reason);
+      }
+   }
+}
@@ -0,0 +1,182 @@
+package client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import server.Student;
+import server.StudentCollectionTCPJsonRPCServer;
+
+/**
+ * Purpose:
+ * Measures the throughput of the student server for get, getNames and add
+ * with 1 to 1000 clients calling at the same time, once with a fixed pool of
+ * worker threads and once with a virtual thread per connection.
+ *
+ * The server runs in this JVM on a free port. Every client calls the method
+ * in a loop for a few seconds, either with a new connection and a bare JSON
+ * request per call (single, like older clients) or through one
+ * StudentTcpProxy that all clients share (framed, a few persistent
+ * connections that carry the calls of all clients).
+ *
+ * Then it imports BULK students once one by one (add) and once in batches
+ * (addAll), both through the proxy.
+ *
+ * Run with:
+ * gradle JsonRPCviaTCPStudent:runBenchmark
+ * or with the seconds per measurement, the client counts and the workers:
+ * gradle JsonRPCviaTCPStudent:runBenchmark --args '5 1,10,100,1000 16'
+ */
+public class StudentRpcBenchmark extends Object {
+
+   private static final String[] METHODS = {"get", "getNames", "add"};
+   // students of the bulk import
+   private static final int BULK = 10000;
+
+   public static void main(String args[]) throws Exception {
+      int seconds = 2;
+      int[] clients = {1, 10, 100, 1000};
+      int workers = StudentCollectionTCPJsonRPCServer.DEFAULT_WORKERS;
+      try {
+         if (args.length > 0)
+            seconds = Integer.parseInt(args[0]);
+         if (args.length > 1)
+            clients = Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray();
+         if (args.length > 2)
+            workers = Integer.parseInt(args[2]);
+      } catch (NumberFormatException e) {
+         System.out.println("Expected Arguments: [seconds(int)] [clients(int,int,...)] [workers(int)]");
+         System.exit(1);
+      }
+
+      System.out.println("mode\tworkers\twire\tclients\tmethod\tcalls/s\terrors");
+      List<String> imports = new ArrayList<>();
+      for (String mode : new String[]{"pool", "virtual"}) {
+         StudentCollectionTCPJsonRPCServer server = StudentCollectionTCPJsonRPCServer.startLocal(mode, workers,
+               StudentCollectionTCPJsonRPCServer.DEFAULT_MAX_CONNECTIONS);
+         for (boolean framed : new boolean[]{false, true}) {
+            StudentTcpProxy proxy = framed ? new StudentTcpProxy("localhost", server.getPort()) : null;
+            for (int n : clients) {
+               for (String method : METHODS) {
+                  long[] result = run(server.getPort(), proxy, method, n, seconds);
+                  System.out.printf("%s\t%s\t%s\t%d\t%s\t%.0f\t%d%n", mode, mode.equals("pool") ? workers : "-",
+                        framed ? "framed" : "single", n, method, result[0] / (double) seconds, result[1]);
+               }
+            }
+            if (proxy != null)
+               proxy.close();
+         }
+         StudentTcpProxy proxy = new StudentTcpProxy("localhost", server.getPort());
+         for (boolean batched : new boolean[]{false, true}) {
+            long[] result = bulkImport(proxy, batched);
+            imports.add(String.format("%s\t%s\t%s\t%d\t%d\t%d", mode, mode.equals("pool") ? workers : "-",
+                  batched ? "addAll" : "add", BULK, result[0], result[1]));
+         }
+         proxy.close();
+         server.stop();
+      }
+      System.out.println();
+      System.out.println("mode\tworkers\timport\tstudents\tms\tadded");
+      imports.forEach(System.out::println);
+      System.exit(0);
+   }
+
+   /**
+    * Lets the clients call the method for the given time
+    *
+    * @param proxy shared by the clients, null for a connection per call
+    * @return calls that got a result and calls that failed
+    */
+   private static long[] run(int port, StudentTcpProxy proxy, String method, int clients, int seconds)
+         throws InterruptedException {
+      AtomicLong ok = new AtomicLong();
+      AtomicLong failed = new AtomicLong();
+      long end = System.nanoTime() + seconds * 1_000_000_000L;
+      CountDownLatch done = new CountDownLatch(clients);
+      ExecutorService threads = StudentCollectionTCPJsonRPCServer.newVirtualThreadExecutor();
+      for (int i = 0; i < clients; i++) {
+         int client = i;
+         threads.execute(() -> {
+            // the clients overwrite the same ten students, single calls read at
+            // most 1024 bytes of an answer so getNames must stay short
+            Student student = new Student("bench" + client % 10, 1000 + client % 10, new String[]{"Ser321"});
+            Object[] params = method.equals("get") ? new Object[]{"JimBuffett"}
+                              : method.equals("add") ? new Object[]{student.toJson()} : new Object[0];
+            try {
+               while (System.nanoTime() < end) {
+                  String response = proxy != null ? proxy.callMethod(method, params)
+                                                  : callSingle(port, method, params);
+                  if (hasResult(response))
+                     ok.incrementAndGet();
+                  else
+                     failed.incrementAndGet();
+               }
+            } finally {
+               done.countDown();
+            }
+         });
+      }
+      done.await();
+      threads.shutdown();
+      return new long[]{ok.get(), failed.get()};
+   }
+
+   /**
+    * Adds BULK new students, one call each or in batches
+    *
+    * @return milliseconds and students added
+    */
+   private static long[] bulkImport(StudentTcpProxy proxy, boolean batched) {
+      List<Student> students = new ArrayList<>();
+      for (int i = 0; i < BULK; i++) {
+         students.add(new Student("bulk" + i, 2000 + i, new String[]{"Ser321"}));
+      }
+      long start = System.nanoTime();
+      int added = 0;
+      if (batched) {
+         added = proxy.addAll(students);
+      } else {
+         for (Student student : students) {
+            if (proxy.add(student))
+               added++;
+         }
+      }
+      return new long[]{(System.nanoTime() - start) / 1_000_000, added};
+   }
+
+   /**
+    * A call the way older clients make it: a new connection, the bare JSON
+    * request, one read of the answer
+    */
+   private static String callSingle(int port, String method, Object[] params) {
+      JSONObject theCall = new JSONObject();
+      theCall.put("method", method);
+      theCall.put("id", 1);
+      theCall.put("jsonrpc", "2.0");
+      theCall.put("params", new JSONArray(Arrays.asList(params)));
+      try (Socket sock = new Socket("localhost", port)) {
+         sock.getOutputStream().write(theCall.toString().getBytes());
+         byte[] answer = new byte[1024];
+         int n = sock.getInputStream().read(answer);
+         return n < 0 ? "{}" : new String(answer, 0, n);
+      } catch (IOException e) {
+         return "{}";
+      }
+   }
+
+   private static boolean hasResult(String response) {
+      try {
+         return new JSONObject(response).has("result");
+      } catch (Exception e) {
+         return false; // cut off or no answer at all
+      }
+   }
+}
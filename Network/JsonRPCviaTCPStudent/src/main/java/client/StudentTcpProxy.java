@@ -5,6 +5,10 @@ import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -14,6 +18,10 @@ import org.json.JSONArray;
  * by marshalling/unmarshalling parameters and results and using a TCP
  * connection to request the method be executed on the server.
  * Byte arrays are used for communication to support multiple langs.
+ * The calls go over a few persistent connections (RpcConnectionPool) that
+ * can be shared by many threads, instead of a new connection per call.
+ * Many calls can be sent together as a JSON-RPC 2.0 batch (callBatch,
+ * addAll), and calls whose result is not needed as notifications.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,14 +29,27 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
-   private String host;
-   private int port;
+   // calls per batch of addAll, a few batches are on the way at once
+   public static final int BATCH_SIZE = 500;
+   private final AtomicInteger id = new AtomicInteger();
+   private final RpcConnectionPool pool;
    
    public StudentTcpProxy (String host, int port){
-      this.host = host;
-      this.port = port;
+      this(host, port, RpcConnectionPool.DEFAULT_SIZE);
+   }
+
+   /**
+    * @param connections persistent connections to the server at most
+    */
+   public StudentTcpProxy (String host, int port, int connections){
+      this.pool = new RpcConnectionPool(host, port, connections);
+   }
+
+   /**
+    * Closes the connections to the server
+    */
+   public void close(){
+      pool.close();
    }
 
    private void debug(String message) {
@@ -44,47 +65,165 @@ public class StudentTcpProxy extends Object implements StudentCollection {
     */
    public String callMethod(String method, Object[] params){
       // create JSON RPC message
-      JSONObject theCall = new JSONObject();
       String ret = "{}";
       try{
-         debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
+         int callId = id.incrementAndGet();
+         JSONObject theCall = newCall(method, params, callId);
+         if (debugOn)
+            debug("Request is: "+theCall.toString());
+
+         // send the message on a pooled connection and wait for the
+         // response with our id
+         ret = pool.call(callId, theCall.toString());
          
          // return
-         debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
+         if (debugOn)
+            debug("callMethod received from server: "+ret);
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
       return ret;
    }
 
+   /**
+    * Sends the call without an id, the server runs it but does not answer
+    * @param method
+    * @param params
+    */
+   public void sendNotification(String method, Object[] params){
+      try{
+         JSONObject theCall = newCall(method, params, null);
+         if (debugOn)
+            debug("Notification is: "+theCall.toString());
+         pool.send(theCall.toString());
+      }catch(Exception ex){
+         System.out.println("exception in sendNotification: "+ex.getMessage());
+      }
+   }
+
+   /**
+    * Sends the calls as one batch and waits for the answers
+    * @param methods
+    * @param params the parameters of each call
+    * @return the responses in the order of the calls, a response is "{}" if
+    *         the call failed or got no answer
+    */
+   public String[] callBatch(String[] methods, Object[][] params){
+      if (methods.length == 0)
+         return new String[0]; // an empty batch is not a valid request
+      try{
+         return responses(sendBatch(methods, params, 0, methods.length));
+      }catch(Exception ex){
+         System.out.println("exception in callBatch: "+ex.getMessage());
+         return responses(null);
+      }
+   }
+
+   /**
+    * Sends the calls from..to of methods as one batch without waiting
+    */
+   private Batch sendBatch(String[] methods, Object[][] params, int from, int to) throws IOException {
+      Batch batch = new Batch(to - from);
+      JSONArray theCalls = new JSONArray();
+      // the ids of a batch follow each other, the answers are sorted by them
+      int first = id.getAndAdd(batch.ids.length) + 1;
+      for (int i = 0; i < batch.ids.length; i++){
+         batch.ids[i] = first + i;
+         theCalls.put(newCall(methods[from + i], params[from + i], batch.ids[i]));
+      }
+      if (debugOn)
+         debug("Batch is: "+theCalls.toString());
+      batch.answer = pool.callAsync(batch.ids, theCalls.toString());
+      return batch;
+   }
+
+   /**
+    * Waits for the answer of the batch and sorts its responses by id
+    * @param batch null if it could not be sent
+    */
+   private String[] responses(Batch batch){
+      String[] ret = new String[batch == null ? 0 : batch.ids.length];
+      Arrays.fill(ret, "{}");
+      if (batch == null || ret.length == 0)
+         return ret;
+      try{
+         String result = RpcConnectionPool.await(batch.answer, batch.ids[0]);
+         if (debugOn)
+            debug("callBatch received from server: "+result);
+         JSONArray resArr = new JSONArray(result);
+         for (int i=0; i<resArr.length(); i++){
+            JSONObject res = resArr.getJSONObject(i);
+            int index = res.isNull("id") ? -1 : res.getInt("id") - batch.ids[0];
+            if (index >= 0 && index < ret.length)
+               ret[index] = res.toString();
+         }
+      }catch(Exception ex){
+         System.out.println("exception in callBatch: "+ex.getMessage());
+      }
+      return ret;
+   }
+
+   /**
+    * Adds the students in batches of BATCH_SIZE calls, the batches are sent one
+    * after the other without waiting for the answers in between
+    * @param studs
+    * @return the number of students that were added
+    */
+   public int addAll(List<Student> studs){
+      String[] methods = new String[studs.size()];
+      Object[][] params = new Object[studs.size()][];
+      for (int i=0; i<methods.length; i++){
+         methods[i] = "add";
+         params[i] = new Object[]{studs.get(i).toJson()};
+      }
+      List<Batch> batches = new ArrayList<>();
+      try{
+         for (int from=0; from<methods.length; from+=BATCH_SIZE){
+            batches.add(sendBatch(methods, params, from, Math.min(from + BATCH_SIZE, methods.length)));
+         }
+      }catch(Exception ex){
+         System.out.println("exception in addAll: "+ex.getMessage());
+      }
+      int ret = 0;
+      for (Batch batch : batches){
+         for (String result : responses(batch)){
+            if (new JSONObject(result).optBoolean("result",false))
+               ret++;
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * @param callId null for a notification
+    */
+   private static JSONObject newCall(String method, Object[] params, Integer callId){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      if (callId != null)
+         theCall.put("id",callId.intValue());
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList<>();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      return theCall;
+   }
+
+   /**
+    * A batch on the way: the ids of its calls and its answer
+    */
+   private static class Batch {
+      final int[] ids;
+      CompletableFuture<String> answer;
+
+      Batch(int size){
+         ids = new int[size];
+      }
+   }
+
    public boolean saveToJsonFile() {
       boolean ret = false;
       String result = callMethod("saveToJsonFile", new Object[]{});
@@ -137,7 +276,8 @@ public class StudentTcpProxy extends Object implements StudentCollection {
    public String[] getNames() {
       String[] ret = new String[]{};
       String result = callMethod("getNames", new Object[0]);
-      debug("result of getNames is: "+result);
+      if (debugOn)
+         debug("result of getNames is: "+result);
       JSONObject res = new JSONObject(result);
       JSONArray namesJson = res.optJSONArray("result");
       ret = new String[namesJson.length()];
@@ -0,0 +1,74 @@
+package server;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: the framed wire format of the student JsonRPC protocol.
+ *
+ * Every message is a 4 byte big endian length followed by that many bytes of
+ * UTF-8 JSON. A connection carries any number of requests and responses, a
+ * response is matched to its request by the JsonRPC id, so a client may send
+ * the next request before the answer to the last one came back and the server
+ * may answer them in any order.
+ *
+ * A JSON message starts with '{' (or '[' for a batch), which is never the
+ * first byte of a length (that would be a frame over 1 GB). So the server can
+ * tell an old client that sends one bare JSON request per connection from a
+ * framed one by the first byte.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public final class Frames {
+
+   // frames larger than this are refused, a garbled length must not make us
+   // allocate gigabytes
+   public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+   private Frames() {
+   }
+
+   /**
+    * Writes the message as one frame and flushes it. Callers that share the
+    * stream have to hold its lock.
+    */
+   public static void write(DataOutputStream out, String message) throws IOException {
+      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.flush();
+   }
+
+   /**
+    * Reads the next frame
+    *
+    * @return the message, null if the stream ended between two frames
+    * @throws SocketTimeoutException if the socket timed out before the frame
+    *         started, the stream may be read again
+    * @throws IOException if the stream ended or timed out inside a frame or
+    *         the length is not valid
+    */
+   public static String read(DataInputStream in) throws IOException {
+      int first = in.read();
+      if (first < 0)
+         return null;
+      if (first == '{' || first == '[') {
+         // bare JSON, e.g. the error of a server that has no room for us
+         byte[] rest = in.readNBytes(1024);
+         throw new IOException("Unframed message: "+(char) first+new String(rest, StandardCharsets.UTF_8));
+      }
+      try {
+         int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                      | in.readUnsignedByte();
+         if (length < 0 || length > MAX_FRAME)
+            throw new IOException("Invalid frame length "+length);
+         byte[] bytes = new byte[length];
+         in.readFully(bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+      } catch (SocketTimeoutException e) {
+         // part of the frame is read already, the stream cannot go on
+         throw new IOException("Timed out inside a frame", e);
+      }
+   }
+}
@@ -48,7 +48,8 @@ public class Student {
 
    public Student(JSONObject jsonObj){
       try{
-         debug("constructor from json received: " + jsonObj.toString());
+         if (debugOn)
+            debug("constructor from json received: " + jsonObj.toString());
          name = jsonObj.optString("name","unknown");
          studentid = jsonObj.optInt("studentid",0);
          takes = new Vector<String>();
@@ -5,6 +5,7 @@ import java.io.*;
 import java.util.*;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import java.util.stream.IntStream;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -19,34 +20,150 @@ import org.json.JSONArray;
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   // a batch runs this many reads in a row or more in parallel
+   private static final int PARALLEL_READS = 16;
    StudentCollection studLib;
 
    public StudentCollectionSkeleton (StudentCollection studLib){
       this.studLib = studLib;
    }
 
+   // the messages of debug() are built even if it is off, calls with
+   // expensive messages check debugOn first
    private void debug(String message) {
       if (debugOn)
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Answers a JsonRPC request: one call object or a batch (JSON-RPC 2.0), an
+    * array of call objects that is answered with an array of the responses.
+    * Calls without an id are notifications, they are run but not answered.
+    *
+    * The calls of a batch that only read the collection (get, getNames,
+    * getNameById) run in parallel, calls that change it run one after the
+    * other in the order of the batch, after the reads before them and before
+    * the reads after them. So a batch has the same effect as its calls sent
+    * one by one.
+    *
+    * @return the response, an empty string if there is nothing to answer
+    */
    public String callMethod(String request){
+      String trimmed = request.trim();
+      if (!trimmed.startsWith("[")) {
+         JSONObject result = callMethod(parse(trimmed));
+         return result == null ? "" : result.toString();
+      }
+      JSONArray batch;
+      try{
+         batch = new JSONArray(trimmed);
+      }catch(Exception ex){
+         return error(null, -32700, "Parse error").toString();
+      }
+      if (batch.length() == 0) {
+         return error(null, -32600, "Invalid Request").toString();
+      }
+      JSONObject[] results = new JSONObject[batch.length()];
+      int from = 0;
+      while (from < batch.length()) {
+         // the reads up to the next write run in parallel
+         int to = from;
+         while (to < batch.length() && isRead(batch.opt(to))) {
+            to++;
+         }
+         if (to - from >= PARALLEL_READS) {
+            IntStream.range(from, to).parallel().forEach(i -> results[i] = callElement(batch.opt(i)));
+         } else {
+            for (int i = from; i < to; i++) {
+               results[i] = callElement(batch.opt(i));
+            }
+         }
+         if (to < batch.length()) {
+            results[to] = callElement(batch.opt(to));
+            to++;
+         }
+         from = to;
+      }
+      JSONArray responses = new JSONArray();
+      for (JSONObject result : results) {
+         if (result != null) {
+            responses.put(result);
+         }
+      }
+      // a batch of notifications only is not answered at all
+      return responses.length() == 0 ? "" : responses.toString();
+   }
+
+   /**
+    * @return the call, null if the request is not valid JSON
+    */
+   private JSONObject parse(String request){
+      try{
+         return new JSONObject(request);
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         return null;
+      }
+   }
+
+   private JSONObject callElement(Object element){
+      if (!(element instanceof JSONObject)) {
+         return error(null, -32600, "Invalid Request");
+      }
+      return callMethod((JSONObject)element);
+   }
+
+   /**
+    * @return true if the element is a call that does not change the collection
+    */
+   private static boolean isRead(Object element){
+      if (!(element instanceof JSONObject)) {
+         return true; // answered with an error, changes nothing
+      }
+      String method = ((JSONObject)element).optString("method");
+      return method.equals("get") || method.equals("getNames") || method.equals("getNameById");
+   }
+
+   private static JSONObject error(Object id, int code, String message){
+      JSONObject error = new JSONObject();
+      error.put("code", code);
+      error.put("message", message);
       JSONObject result = new JSONObject();
+      result.put("jsonrpc", "2.0");
+      result.put("id", id == null ? JSONObject.NULL : id);
+      result.put("error", error);
+      return result;
+   }
+
+   /**
+    * Runs one call
+    *
+    * @param theCall the call, null if it could not be parsed
+    * @return the response, null for a notification
+    */
+   private JSONObject callMethod(JSONObject theCall){
+      JSONObject result = new JSONObject();
+      if (theCall == null) {
+         return result;
+      }
+      boolean notification = !theCall.has("id");
       try{
-         JSONObject theCall = new JSONObject(request);
-         debug("Request is: "+theCall.toString());
+         if (debugOn)
+            debug("Request is: "+theCall.toString());
          String method = theCall.getString("method");
-         int id = theCall.getInt("id");
          JSONArray params = null;
          if(!theCall.isNull("params")){
             params = theCall.getJSONArray("params");
          }
-         result.put("id",id);
+         if (!notification) {
+            result.put("id",theCall.get("id"));
+         }
          result.put("jsonrpc","2.0");
          if(method.equals("add")){
             JSONObject studJson = params.getJSONObject(0);
             Student studToAdd = new Student(studJson);
-            debug("adding stud: "+studToAdd.toJsonString());
+            if (debugOn)
+               debug("adding stud: "+studToAdd.toJsonString());
             studLib.add(studToAdd);
             result.put("result",true);
          }else if(method.equals("remove")){
@@ -63,7 +180,8 @@ public class StudentCollectionSkeleton extends Object {
             String studName = params.getString(0);
             Student stud = studLib.get(studName);
             JSONObject studJson = stud.toJson();
-            debug("get request found: "+studJson.toString());
+            if (debugOn)
+               debug("get request found: "+studJson.toString());
             result.put("result",studJson);
          }else if(method.equals("getNames")){
             String[] names = studLib.getNames();
@@ -71,7 +189,8 @@ public class StudentCollectionSkeleton extends Object {
             for (int i=0; i<names.length; i++){
                resArr.put(names[i]);
             }
-            debug("getNames request found: "+resArr.toString());
+            if (debugOn)
+               debug("getNames request found: "+resArr.toString());
             result.put("result",resArr);
          }else{
             debug("Unable to match method: "+method+". Returning 0.");
@@ -80,7 +199,7 @@ public class StudentCollectionSkeleton extends Object {
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
-      return result.toString();
+      return notification ? null : result;
    }
 }
 
@@ -2,79 +2,427 @@ package server;
 
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.util.*;
+import org.json.JSONObject;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
  *
+ * Calls are handed to an executor, either a fixed pool of worker threads or a
+ * virtual thread per call (Java 21), instead of starting a new thread for
+ * every client. All connections share one skeleton. At most maxConnections
+ * clients are connected at the same time, further clients get a JsonRPC error
+ * and are closed right away. On shutdown (Ctrl-C) the server stops accepting
+ * and finishes the calls it has.
+ *
+ * A client that starts with a length prefix (see Frames) keeps its connection
+ * and may send many requests over it without waiting for the answers. Every
+ * request is run on the executor as soon as it is read and the answers go back
+ * as they are ready, the client matches them by id. A client that sends a bare
+ * JSON request gets one answer and the connection is closed, as before.
+ * Reading a connection takes a (virtual) thread of its own, so persistent
+ * connections do not tie up the workers while they are idle. Writing its
+ * answers takes another one, so a client that does not read its answers does
+ * not tie up the workers either.
+ *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
  *         Software Engineering, CIDSE, IAFSE, ASU Poly
  * @version April 2020
  */
-public class StudentCollectionTCPJsonRPCServer extends Thread {
-   private Socket conn;
-   private int id;
-   private StudentCollectionSkeleton skeleton;
-
-   public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
-                                             StudentCollection stdCol) {
-      this.conn = sock;
-      this.id = id;
-      skeleton = new StudentCollectionSkeleton(stdCol);
+public class StudentCollectionTCPJsonRPCServer {
+
+   public static final int DEFAULT_WORKERS = 16;
+   public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+   // milliseconds shutdown waits for the calls in progress
+   public static final long DRAIN_TIMEOUT = 10000;
+   // milliseconds a persistent connection may stay idle
+   public static final int IDLE_TIMEOUT = 60000;
+   // calls of a persistent connection that may wait for their answers
+   public static final int MAX_PENDING = 32;
+   // the missing virtual threads were reported
+   private static boolean warned = false;
+
+   private final ServerSocket serv;
+   private final ExecutorService executor;
+   // read the connections, one task per connection
+   private final ExecutorService readers = newVirtualThreadExecutor();
+   private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+   private final Semaphore connections;
+   private final StudentCollectionSkeleton skeleton;
+   private final boolean verbose;
+   private volatile boolean stopped = false;
+   private int id = 0;
+
+   /**
+    * Opens the server socket, call serve to accept clients
+    *
+    * @param portNo         port to listen on, 0 for any free port
+    * @param skeleton       answers the calls of all connections
+    * @param executor       runs the calls
+    * @param maxConnections clients served at the same time
+    * @param verbose        print every request and response
+    */
+   public StudentCollectionTCPJsonRPCServer (int portNo, StudentCollectionSkeleton skeleton,
+                                             ExecutorService executor, int maxConnections,
+                                             boolean verbose) throws IOException {
+      this.serv = new ServerSocket(portNo, Math.max(50, maxConnections));
+      this.skeleton = skeleton;
+      this.executor = executor;
+      this.connections = new Semaphore(maxConnections);
+      this.verbose = verbose;
    }
 
-   public void run() {
-      // setup connection
+   public int getPort() {
+      return serv.getLocalPort();
+   }
+
+   /**
+    * Accepts clients until stop is called
+    */
+   public void serve() {
+      while (!stopped) {
+         Socket sock;
+         try {
+            if (verbose)
+               System.out.println("Student server waiting for connects on port "
+                                  +getPort());
+            sock = serv.accept();
+         } catch (IOException e) {
+            if (!stopped)
+               e.printStackTrace();
+            continue;
+         }
+         int connId = id++;
+         if (verbose)
+            System.out.println("Student server connected to client: "+connId);
+         if (!connections.tryAcquire()) {
+            refuse(sock, "too many connections");
+            continue;
+         }
+         try {
+            readers.execute(() -> {
+               try {
+                  handle(sock);
+               } finally {
+                  connections.release();
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            connections.release();
+            refuse(sock, "shutting down");
+         }
+      }
+   }
+
+   /**
+    * Stops accepting clients and waits up to DRAIN_TIMEOUT for the calls that
+    * are in progress
+    *
+    * @return true if all calls were finished
+    */
+   public boolean stop() {
+      stopped = true;
+      try {
+         serv.close();
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      // no more requests, the connections close once their calls are answered
+      for (Socket sock : open) {
+         try {
+            sock.shutdownInput();
+         } catch (IOException e) {
+            // closed already
+         }
+      }
+      long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+      boolean drained = false;
+      readers.shutdown();
+      executor.shutdown();
       try {
+         drained = readers.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)
+                   && executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+                                                TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (!drained) {
+         readers.shutdownNow();
+         executor.shutdownNow();
+      }
+      return drained;
+   }
+
+   /**
+    * Serves the connection until the client closes it: framed requests while
+    * the client sends them, or one bare JSON request or batch
+    */
+   private void handle(Socket conn) {
+      // setup connection
+      open.add(conn);
+      try (conn) {
+         conn.setSoTimeout(IDLE_TIMEOUT);
+         conn.setTcpNoDelay(true);
+         InputStream inSock = new BufferedInputStream(conn.getInputStream());
          OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
+         inSock.mark(1);
+         int first = inSock.read();
+         if (first == -1)
+            return;
+         inSock.reset();
+         if (first == '{' || first == '[')
+            handleSingle(inSock, outSock);
+         else
+            handleFramed(new DataInputStream(inSock),
+                         new DataOutputStream(new BufferedOutputStream(outSock)));
+      } catch (SocketTimeoutException e) {
+         // idle, the client may open a new connection
+      } catch (IOException e) {
+         System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } finally {
+         open.remove(conn);
+      }
+   }
+
+   /**
+    * Reads one bare JSON request, answers it and returns so the connection is
+    * closed. Old clients send the request in one write, it is read with one
+    * read of at most 1024 bytes.
+    */
+   private void handleSingle(InputStream inSock, OutputStream outSock) throws IOException {
+      byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
+
+      // receive request
+      int numr = inSock.read(clientInput,0,1024);
+      if (numr != -1) {
+         //System.out.println("read "+numr+" bytes");
+         String request = new String(clientInput,0,numr);
+         if (verbose)
             System.out.println("request is: "+request);
 
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
+         // prep and send response, on the executor like framed calls
+         String response;
+         try {
+            response = executor.submit(() -> skeleton.callMethod(request)).get();
+         } catch (RejectedExecutionException | ExecutionException e) {
+            response = error(null, "shutting down");
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         // nothing is sent back for notifications
+         byte clientOut[] = response.getBytes();
+         outSock.write(clientOut,0,clientOut.length);
+         if (verbose && !response.isEmpty())
             System.out.println("response is: "+response);
+      }
+   }
+
+   /**
+    * Reads framed requests until the client closes the connection, every
+    * request runs on the executor and its answer is written when it is ready.
+    * The answers are written by a thread of the connection, so a client that
+    * does not read them only blocks that thread and not the workers. Once
+    * MAX_PENDING calls are not answered no further request is read until an
+    * answer is out. The connection is only closed when all answers are out.
+    */
+   private void handleFramed(DataInputStream in, DataOutputStream out) throws IOException {
+      // a permit for every call of this connection that is not answered yet
+      Semaphore pending = new Semaphore(MAX_PENDING);
+      BlockingQueue<String> answers = new LinkedBlockingQueue<>();
+      Future<?> writer;
+      try {
+         writer = readers.submit(() -> writeAnswers(out, answers, pending));
+      } catch (RejectedExecutionException e) {
+         return; // shutting down
+      }
+      try {
+         while (true) {
+            String request;
+            try {
+               request = Frames.read(in);
+            } catch (SocketTimeoutException e) {
+               // between two frames, inside one the connection is closed
+               if (pending.availablePermits() == MAX_PENDING)
+                  return; // idle
+               continue;
+            }
+            if (request == null)
+               return;
+            if (verbose)
+               System.out.println("request is: "+request);
+            pending.acquire();
+            try {
+               executor.execute(() -> {
+                  String response = "";
+                  try {
+                     response = skeleton.callMethod(request);
+                  } finally {
+                     answers.add(response);
+                  }
+               });
+            } catch (RejectedExecutionException e) {
+               answers.add(error(requestId(request), "shutting down"));
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         try {
+            pending.acquire(MAX_PENDING);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
+         writer.cancel(true);
+      }
+   }
+
+   /**
+    * Writes the answers of a framed connection in the order they are ready
+    * until it is interrupted, every answer gives back a permit
+    */
+   private void writeAnswers(DataOutputStream out, BlockingQueue<String> answers, Semaphore pending) {
+      boolean gone = false;
+      try {
+         while (true) {
+            String response = answers.take();
+            try {
+               // notifications are not answered
+               if (!gone && !response.isEmpty()) {
+                  Frames.write(out, response);
+                  if (verbose)
+                     System.out.println("response is: "+response);
+               }
+            } catch (IOException e) {
+               gone = true; // the client is gone, the reader notices it too
+            } finally {
+               pending.release();
+            }
+         }
+      } catch (InterruptedException e) {
+         // the connection is closed
+      }
+   }
+
+   /**
+    * @return the id of the request, null if it has none
+    */
+   private static Object requestId(String request) {
+      try {
+         return new JSONObject(request).opt("id");
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   /**
+    * A JsonRPC error answer for a request the server has no room for
+    */
+   private static String error(Object id, String reason) {
+      JSONObject error = new JSONObject();
+      error.put("code", -32000);
+      error.put("message", "Server busy: "+reason);
+      JSONObject response = new JSONObject();
+      response.put("jsonrpc", "2.0");
+      response.put("id", id == null ? JSONObject.NULL : id);
+      response.put("error", error);
+      return response.toString();
+   }
+
+   /**
+    * Answers a client the server has no room for with an error and closes it
+    */
+   private void refuse(Socket sock, String reason) {
+      try (sock) {
+         sock.getOutputStream().write(error(null, reason).getBytes());
       } catch (IOException e) {
-         System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+         System.out.println("I/O exception occurred refusing a connection:\n"+e.getMessage());
+      }
+   }
+
+   /**
+    * A virtual thread per task if the JVM has them (Java 21), otherwise a new
+    * platform thread per task
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      try {
+         Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) m.invoke(null);
+      } catch (ReflectiveOperationException e) {
+         if (!warned) {
+            System.out.println("Virtual threads need Java 21, using platform threads instead");
+            warned = true;
+         }
+         return Executors.newCachedThreadPool();
       }
    }
-    
+
+   /**
+    * @param mode    pool or virtual
+    * @param workers threads of the pool
+    */
+   public static ExecutorService newExecutor(String mode, int workers) {
+      if (mode.equals("virtual"))
+         return newVirtualThreadExecutor();
+      return Executors.newFixedThreadPool(workers);
+   }
+
+   /**
+    * Starts a quiet server for the students in students.json on a free port,
+    * accepting on a background thread
+    *
+    * @param mode pool or virtual
+    */
+   public static StudentCollectionTCPJsonRPCServer startLocal(String mode, int workers, int maxConnections)
+         throws IOException {
+      StudentCollectionTCPJsonRPCServer server = new StudentCollectionTCPJsonRPCServer(0,
+            new StudentCollectionSkeleton(new StudentCollectionImpl()), newExecutor(mode, workers),
+            maxConnections, false);
+      Thread accept = new Thread(server::serve, "student-server");
+      accept.setDaemon(true);
+      accept.start();
+      return server;
+   }
+
    public static void main (String args[]) {
-      Socket sock;
       StudentCollection studCol = new StudentCollectionImpl();
-      int id=0;
       try {
-         if (args.length != 1) {
-            System.out.println("Expected Arguments: <port(int)>");
+         if (args.length < 1 || args.length > 4) {
+            System.out.println("Expected Arguments: <port(int)> [pool|virtual] [workers(int)] [max connections(int)]");
             System.exit(0);
          }
          int portNo = Integer.parseInt(args[0]);
          if (portNo <= 1024) portNo=8888;
-         ServerSocket serv = new ServerSocket(portNo);
-         // accept client requests. For each request create a new thread to handle
-         while (true) { 
-            System.out.println("Student server waiting for connects on port "
-                               +portNo);
-            sock = serv.accept();
-            System.out.println("Student server connected to client: "+id);
-            StudentCollectionTCPJsonRPCServer myServerThread =
-               new StudentCollectionTCPJsonRPCServer(sock,id++,studCol);
-            myServerThread.start();
+         String mode = args.length > 1 ? args[1] : "pool";
+         if (!mode.equals("pool") && !mode.equals("virtual")) {
+            System.out.println("[mode] must be pool or virtual");
+            System.exit(0);
          }
+         int workers = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WORKERS;
+         int maxConnections = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_CONNECTIONS;
+
+         StudentCollectionTCPJsonRPCServer server = new StudentCollectionTCPJsonRPCServer(portNo,
+               new StudentCollectionSkeleton(studCol), newExecutor(mode, workers), maxConnections, true);
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Student server shutting down");
+            if (!server.stop())
+               System.out.println("Gave up on calls that took longer than "+DRAIN_TIMEOUT+" ms");
+         }));
+         // accept client requests, each connection is served by the executor
+         server.serve();
       } catch(Exception e) {e.printStackTrace();}
    }
 }
@@ -0,0 +1,122 @@
+package server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+public class FramesTest {
+
+   /**
+    * Hands out at most one byte per read, like a connection that delivers a
+    * frame in pieces
+    */
+   private static class Trickle extends FilterInputStream {
+      Trickle(byte[] bytes) {
+         super(new ByteArrayInputStream(bytes));
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         return super.read(b, off, Math.min(len, 1));
+      }
+   }
+
+   private static byte[] frames(String... messages) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (String message : messages)
+         Frames.write(out, message);
+      return bytes.toByteArray();
+   }
+
+   @Test
+   public void roundTrip() throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            frames("{\"id\":1}", "", "{\"name\":\"J\u00fcrgen\"}")));
+      assertEquals("{\"id\":1}", Frames.read(in));
+      assertEquals("", Frames.read(in));
+      assertEquals("{\"name\":\"J\u00fcrgen\"}", Frames.read(in));
+      assertNull(Frames.read(in));
+   }
+
+   @Test
+   public void frameSplitAcrossReads() throws IOException {
+      DataInputStream in = new DataInputStream(new Trickle(frames("{\"method\":\"getNames\"}", "[1,2]")));
+      assertEquals("{\"method\":\"getNames\"}", Frames.read(in));
+      assertEquals("[1,2]", Frames.read(in));
+      assertNull(Frames.read(in));
+   }
+
+   @Test
+   public void tooLongFrameIsRefused() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+         new DataOutputStream(bytes).writeInt(Frames.MAX_FRAME + 1);
+         Frames.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+         fail("frame over MAX_FRAME was read");
+      } catch (IOException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid frame length"));
+      }
+   }
+
+   @Test
+   public void unframedJsonIsDetected() {
+      byte[] bare = "{\"jsonrpc\":\"2.0\",\"error\":{}}".getBytes(StandardCharsets.UTF_8);
+      try {
+         Frames.read(new DataInputStream(new ByteArrayInputStream(bare)));
+         fail("bare JSON was read as a frame");
+      } catch (IOException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith("Unframed message: {\"jsonrpc\""));
+      }
+   }
+
+   @Test(expected = EOFException.class)
+   public void endInsideAFrame() throws IOException {
+      byte[] frame = frames("{\"id\":1}");
+      byte[] cut = java.util.Arrays.copyOf(frame, frame.length - 2);
+      Frames.read(new DataInputStream(new ByteArrayInputStream(cut)));
+   }
+
+   @Test
+   public void timeoutBetweenFramesCanBeRetried() throws IOException {
+      try (ServerSocket server = new ServerSocket(0);
+           Socket client = new Socket("localhost", server.getLocalPort());
+           Socket conn = server.accept()) {
+         conn.setSoTimeout(100);
+         DataInputStream in = new DataInputStream(conn.getInputStream());
+         try {
+            Frames.read(in);
+            fail("read did not time out");
+         } catch (SocketTimeoutException expected) {
+         }
+         client.getOutputStream().write(frames("{\"id\":2}"));
+         assertEquals("{\"id\":2}", Frames.read(in));
+      }
+   }
+
+   @Test
+   public void timeoutInsideAFrameIsNotAnIdleTimeout() throws IOException {
+      try (ServerSocket server = new ServerSocket(0);
+           Socket client = new Socket("localhost", server.getLocalPort());
+           Socket conn = server.accept()) {
+         conn.setSoTimeout(100);
+         // the length and half of the message
+         byte[] frame = frames("{\"id\":3}");
+         client.getOutputStream().write(frame, 0, 6);
+         try {
+            Frames.read(new DataInputStream(conn.getInputStream()));
+            fail("read did not time out");
+         } catch (SocketTimeoutException e) {
+            fail("a timeout inside a frame must not look like an idle connection");
+         } catch (IOException e) {
+            assertEquals("Timed out inside a frame", e.getMessage());
+         }
+      }
+   }
+}
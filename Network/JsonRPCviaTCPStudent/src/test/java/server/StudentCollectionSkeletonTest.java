@@ -0,0 +1,211 @@
+package server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The batch semantics of StudentCollectionSkeleton.callMethod
+ */
+public class StudentCollectionSkeletonTest {
+
+   /**
+    * Students in memory; records the writes and how many reads ran at the same
+    * time
+    */
+   private static class Recording implements StudentCollection {
+      final Map<String, Student> students = new ConcurrentHashMap<>();
+      final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+      final AtomicInteger reading = new AtomicInteger();
+      final AtomicInteger maxReading = new AtomicInteger();
+      volatile long readMillis = 0;
+
+      public boolean saveToJsonFile() {
+         return true;
+      }
+
+      public boolean resetFromJsonFile() {
+         return true;
+      }
+
+      public boolean add(Student stud) {
+         writes.add("add "+stud.name);
+         students.put(stud.name, stud);
+         return true;
+      }
+
+      public boolean remove(String aName) {
+         writes.add("remove "+aName);
+         return students.remove(aName) != null;
+      }
+
+      public Student get(String aName) {
+         read();
+         return students.get(aName);
+      }
+
+      public String getNameById(int id) {
+         read();
+         for (Student stud : students.values()) {
+            if (stud.studentid == id)
+               return stud.name;
+         }
+         return "unknown";
+      }
+
+      public String[] getNames() {
+         read();
+         return students.keySet().toArray(new String[0]);
+      }
+
+      private void read() {
+         maxReading.accumulateAndGet(reading.incrementAndGet(), Math::max);
+         try {
+            Thread.sleep(readMillis);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } finally {
+            reading.decrementAndGet();
+         }
+      }
+   }
+
+   private final Recording students = new Recording();
+   private final StudentCollectionSkeleton skeleton = new StudentCollectionSkeleton(students);
+
+   private static String call(Object id, String method, Object... params) {
+      JSONObject call = new JSONObject();
+      call.put("jsonrpc", "2.0");
+      if (id != null)
+         call.put("id", id);
+      call.put("method", method);
+      call.put("params", new JSONArray(params));
+      return call.toString();
+   }
+
+   private static String add(Object id, String name, int studentid) {
+      JSONObject stud = new JSONObject();
+      stud.put("name", name);
+      stud.put("studentid", studentid);
+      stud.put("takes", new JSONArray());
+      return call(id, "add", stud);
+   }
+
+   private static String batch(List<String> calls) {
+      return "["+String.join(",", calls)+"]";
+   }
+
+   private static void assertInvalidRequest(JSONObject response) {
+      assertTrue(response.isNull("id"));
+      assertEquals(-32600, response.getJSONObject("error").getInt("code"));
+   }
+
+   @Test
+   public void singleCall() {
+      students.add(new Student("anna", 1, new String[0]));
+      JSONObject response = new JSONObject(skeleton.callMethod(call(7, "getNameById", 1)));
+      assertEquals(7, response.getInt("id"));
+      assertEquals("anna", response.getString("result"));
+   }
+
+   @Test
+   public void longRunOfReadsRunsInParallel() {
+      assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+      students.add(new Student("anna", 1, new String[0]));
+      students.readMillis = 50;
+      List<String> calls = new ArrayList<>();
+      for (int i = 0; i < 32; i++)
+         calls.add(call(i, "getNameById", 1));
+      JSONArray responses = new JSONArray(skeleton.callMethod(batch(calls)));
+      assertEquals(32, responses.length());
+      for (int i = 0; i < 32; i++) {
+         assertEquals(i, responses.getJSONObject(i).getInt("id"));
+         assertEquals("anna", responses.getJSONObject(i).getString("result"));
+      }
+      assertTrue("reads did not overlap", students.maxReading.get() > 1);
+   }
+
+   @Test
+   public void shortRunOfReadsRunsOneAfterTheOther() {
+      students.readMillis = 5;
+      List<String> calls = new ArrayList<>();
+      for (int i = 0; i < 4; i++)
+         calls.add(call(i, "getNames"));
+      assertEquals(4, new JSONArray(skeleton.callMethod(batch(calls))).length());
+      assertEquals(1, students.maxReading.get());
+   }
+
+   @Test
+   public void writesKeepTheirOrderAndSeparateTheReads() {
+      List<String> calls = new ArrayList<>();
+      calls.add(add(1, "anna", 10));
+      calls.add(call(2, "getNameById", 10));
+      calls.add(call(3, "remove", "anna"));
+      calls.add(call(4, "getNameById", 10));
+      calls.add(add(5, "bert", 11));
+      calls.add(add(6, "carl", 12));
+      for (int i = 0; i < 20; i++)
+         calls.add(call(100 + i, "getNameById", 12));
+      calls.add(call(7, "remove", "carl"));
+      JSONArray responses = new JSONArray(skeleton.callMethod(batch(calls)));
+
+      assertEquals(List.of("add anna", "remove anna", "add bert", "add carl", "remove carl"), students.writes);
+      assertEquals(calls.size(), responses.length());
+      assertEquals("anna", responses.getJSONObject(1).getString("result"));
+      assertEquals("unknown", responses.getJSONObject(3).getString("result"));
+      for (int i = 0; i < 20; i++)
+         assertEquals("carl", responses.getJSONObject(6 + i).getString("result"));
+      for (int i = 0; i < responses.length(); i++)
+         assertEquals(new JSONObject(calls.get(i)).get("id"), responses.getJSONObject(i).get("id"));
+   }
+
+   @Test
+   public void notificationsRunButAreNotAnswered() {
+      List<String> calls = new ArrayList<>();
+      calls.add(add(null, "anna", 10));
+      calls.add(call(1, "getNameById", 10));
+      calls.add(call(null, "getNames"));
+      JSONArray responses = new JSONArray(skeleton.callMethod(batch(calls)));
+      assertEquals(1, responses.length());
+      assertEquals(1, responses.getJSONObject(0).getInt("id"));
+      assertEquals("anna", responses.getJSONObject(0).getString("result"));
+   }
+
+   @Test
+   public void batchOfNotificationsOnlyIsNotAnswered() {
+      assertEquals("", skeleton.callMethod(batch(List.of(add(null, "anna", 10), call(null, "remove", "anna")))));
+      assertEquals(List.of("add anna", "remove anna"), students.writes);
+   }
+
+   @Test
+   public void emptyBatchIsAnInvalidRequest() {
+      assertInvalidRequest(new JSONObject(skeleton.callMethod("[]")));
+   }
+
+   @Test
+   public void elementThatIsNoObjectIsAnInvalidRequest() {
+      JSONArray responses = new JSONArray(skeleton.callMethod("[1,"+call(2, "getNames")+",\"x\"]"));
+      assertEquals(3, responses.length());
+      assertInvalidRequest(responses.getJSONObject(0));
+      assertEquals(2, responses.getJSONObject(1).getInt("id"));
+      assertInvalidRequest(responses.getJSONObject(2));
+   }
+
+   @Test
+   public void batchThatIsNoJsonIsAParseError() {
+      JSONObject response = new JSONObject(skeleton.callMethod("[{\"id\":1,"));
+      assertTrue(response.isNull("id"));
+      assertEquals(-32700, response.getJSONObject("error").getInt("code"));
+   }
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the client handlers on a fixed number of worker threads instead of a new
+ * thread per client. Clients that arrive while all workers are busy wait in a
+ * bounded queue; when that is full too they are turned away (the server answers
+ * them with a 503) instead of piling up threads until the JVM runs out of
+ * memory.
+ *
+ * For every client the pool measures how long it waited in the queue and how
+ * long its handler ran. If the wait grows while the service time stays the
+ * same, there are too few workers; if the service time grows, the workers are
+ * slowed down by something else (disk, CPU).
+ */
+class ClientPool {
+    /**
+     * Milliseconds shutdown waits for queued and running clients
+     */
+    public final static long DRAIN_TIMEOUT = 10000;
+
+    /**
+     * Milliseconds between two lines of statistics on the console
+     */
+    public final static long REPORT_INTERVAL = 10000;
+
+    /**
+     * Counts times in buckets of powers of two microseconds, good enough to tell a
+     * millisecond from a second
+     */
+    static class Times {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @param fraction e.g. 0.99
+         * @return upper bound of the bucket the value is in, microseconds
+         */
+        long getPercentile(double fraction) {
+            long rank = (long) Math.ceil(getCount() * fraction);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, maxMicros.get());
+            }
+            return maxMicros.get();
+        }
+
+        @Override
+        public String toString() {
+            long n = getCount();
+            return String.format("avg %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    n == 0 ? 0.0 : totalMicros.sum() / 1000.0 / n, getPercentile(0.5) / 1000.0,
+                    getPercentile(0.99) / 1000.0, maxMicros.get() / 1000.0);
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Times queueWait = new Times();
+    private final Times service = new Times();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param workers threads that run the handlers
+     * @param queue   clients that may wait for a worker
+     */
+    public ClientPool(int workers, int queue) {
+        pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queue)));
+        Thread reporter = new Thread(() -> {
+            long reported = 0;
+            while (!pool.isShutdown()) {
+                try {
+                    Thread.sleep(REPORT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // quiet while there are no clients
+                if (service.getCount() != reported) {
+                    reported = service.getCount();
+                    System.out.println(report());
+                }
+            }
+        }, "client-pool-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Queues the handler for the next free worker
+     *
+     * @param handler serves one client
+     * @return false if the queue is full (or the pool shut down), the caller has
+     *         to answer the client itself
+     */
+    public boolean submit(Runnable handler) {
+        long queued = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long started = System.nanoTime();
+                queueWait.record(started - queued);
+                try {
+                    handler.run();
+                } finally {
+                    service.record(System.nanoTime() - started);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Stops taking clients and waits up to DRAIN_TIMEOUT for the ones that are
+     * queued or running. Workers still busy after that are interrupted.
+     *
+     * @return true if all clients were served
+     */
+    public boolean drain() {
+        pool.shutdown();
+        boolean drained = false;
+        try {
+            drained = pool.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!drained)
+            pool.shutdownNow();
+        return drained;
+    }
+
+    /**
+     * @return one line with the queue wait and service times so far
+     */
+    public String report() {
+        return "Served " + service.getCount() + ", rejected " + rejected.sum() + ", queued "
+                + pool.getQueue().size() + ", busy " + pool.getActiveCount() + "/" + pool.getMaximumPoolSize()
+                + " | queue wait " + queueWait + " | service " + service;
+    }
+
+    public int getWorkers() {
+        return pool.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return pool.getQueue().size() + pool.getQueue().remainingCapacity();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -1,33 +1,137 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Semaphore;
 
 public class SimpleWebServer {
 
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        String mode = "thread";
+        int maxInFlight = 0;
+        int queue = DEFAULT_QUEUE;
+        if (args.length < 1 || args.length > 4) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println("Expected arguments: <port(int)> [thread|virtual] [max in-flight(int)]");
+            System.out.println("                or: <port(int)> pool [workers(int)] [queue(int)]");
             System.exit(1);
         }
         System.out.println("running");
 try {
             port = Integer.parseInt(args[0]);
+            if (args.length > 2)
+                maxInFlight = Integer.parseInt(args[2]);
+            if (args.length > 3)
+                queue = Integer.parseInt(args[3]);
         } catch (NumberFormatException nfe) {
-            System.out.println("[Port] must be integer");
+            System.out.println("[Port|max in-flight|workers|queue] must be integer");
+            System.exit(2);
+        }
+        if (args.length > 1)
+            mode = args[1];
+        if (!mode.equals("thread") && !mode.equals("virtual") && !mode.equals("pool")) {
+            System.out.println("[mode] must be thread, virtual or pool");
             System.exit(2);
         }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        SimpleWebServer server;
+        if (mode.equals("pool"))
+            server = new SimpleWebServer(port, new ClientPool(maxInFlight > 0 ? maxInFlight : DEFAULT_WORKERS, queue));
+        else
+            server = new SimpleWebServer(port, mode.equals("virtual"), maxInFlight);
 
     }
 
+    /**
+     * Worker threads in pool mode
+     */
+    public final static int DEFAULT_WORKERS = 16;
+
+    /**
+     * Clients that may wait for a worker in pool mode
+     */
+    public final static int DEFAULT_QUEUE = 64;
+
+    /**
+     * Starts virtual threads if the JVM supports them (Java 21), null otherwise
+     */
+    private Method startVirtualThread = null;
+
+    /**
+     * Caps the number of requests handled at the same time, null for no cap
+     */
+    private Semaphore inFlight = null;
+
+    /**
+     * One line per request, written in batches by a background thread. null if
+     * the log cannot be opened
+     */
+    private AccessLog accessLog = null;
+
+    /**
+     * Runs the clients on a fixed number of workers, null for a thread per client
+     */
+    private ClientPool pool = null;
+
+    private ServerSocket server = null;
+
     public SimpleWebServer(int port) {
+        this(port, false, 0);
+    }
+
+    /**
+     * Runs every client on a worker of the pool. Clients that find the pool and
+     * its queue full get a 503. On shutdown (Ctrl-C) the server stops accepting
+     * and lets the pool finish the clients it has.
+     *
+     * @param port to listen on
+     * @param pool runs the clients
+     */
+    public SimpleWebServer(int port, ClientPool pool) {
+        this.pool = pool;
+        System.out.println(pool.getWorkers() + " workers, queue " + pool.getQueueCapacity());
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+        start(port);
+    }
 
-        ServerSocket server = null;
+    /**
+     * @param port        to listen on
+     * @param virtual     run every client on a virtual instead of a platform
+     *                    thread
+     * @param maxInFlight requests handled at the same time, 0 for no cap
+     */
+    public SimpleWebServer(int port, boolean virtual, int maxInFlight) {
+        if (virtual) {
+            try {
+                startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            } catch (NoSuchMethodException ex) {
+                System.out.println("Virtual threads need Java 21, using platform threads instead");
+            }
+        }
+        if (maxInFlight > 0) {
+            inFlight = new Semaphore(maxInFlight);
+        }
+        start(port);
+    }
+
+    /**
+     * Opens the server socket and accepts clients until it is closed
+     */
+    private void start(int port) {
         Socket sock = null;
+        try {
+            accessLog = new AccessLog(new File("access.log"));
+        } catch (IOException ex) {
+            System.out.println("Cannot open access log: " + ex.getMessage());
+        }
 
         try {
 
@@ -37,32 +141,98 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            // open it through a channel so the accepted sockets have a
+            // SocketChannel that files can be transferred to directly
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            server = serverChannel.socket();
 
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
+        System.out.println("Ready...");
         while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
             try {
-                sock = server.accept();
+                sock = server.getChannel().accept().socket();
                 createClientThread(sock);
+            } catch (IOException ex) {
+                if (!server.isClosed()) // closed by drain
+                    ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients and waits for the pool to finish the ones it has
+     */
+    private void drain() {
+        System.out.println("Shutting down, finishing the clients in the pool...");
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        if (!pool.drain())
+            System.out.println("Gave up on clients that took longer than " + ClientPool.DRAIN_TIMEOUT + " ms");
+        System.out.println(pool.report());
+        if (accessLog != null) {
+            try {
+                accessLog.flush();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
     }
 
+    /**
+     * Answers a client that the pool has no room for with a 503 and closes it.
+     * This runs on the accept thread, so the request is not read.
+     */
+    private void reject(Socket sock) {
+        byte[] body = "<html>Server is busy, please try again</html>".getBytes();
+        byte[] head = FileResponse.header("503 Service Unavailable", "text/html; charset=utf-8", body.length,
+                "Retry-After: 1\r\n");
+        try (Socket s = sock) {
+            OutputStream out = s.getOutputStream();
+            out.write(head);
+            out.write(body);
+            out.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        if (accessLog != null) {
+            accessLog.log(sock.getInetAddress(), null, null, null, 503, head.length + body.length, 0);
+        }
+    }
+
     /**
      * Take the newly accepted socket and make it a thread by passing it to
      * inner class ClientHandler which implements Runnable; subsequently start
      * the thread up so it can be processed.
      *
+     * The thread is a virtual thread if the server was started in virtual mode.
+     * In pool mode the handler runs on a worker of the pool instead.
+     *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
+        ClientHandler handler = new ClientHandler(sock, inFlight, accessLog);
+        if (pool != null) {
+            if (!pool.submit(handler))
+                reject(sock);
+            return;
+        }
+        if (startVirtualThread != null) {
+            try {
+                startVirtualThread.invoke(null, handler);
+                return;
+            } catch (ReflectiveOperationException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Thread thread = new Thread(handler);
         thread.start();
     }
 }
@@ -79,6 +249,10 @@ class ClientHandler implements Runnable {
     //establish a new socket to read client input from (via BufferedReader)
     InputStream in = null;
     OutputStream out = null;
+    SocketChannel socketChannel = null;
+    Semaphore inFlight = null;
+    AccessLog accessLog = null;
+    InetAddress client = null;
 
     /**
      * ClientHandler is the constructor that accepts a client socket & chains it
@@ -88,64 +262,103 @@ class ClientHandler implements Runnable {
      * @param clientSocket
      */
     public ClientHandler(Socket clientSocket) {
+        this(clientSocket, null);
+    }
+
+    /**
+     * @param clientSocket
+     * @param inFlight caps the requests handled at the same time, may be null
+     */
+    public ClientHandler(Socket clientSocket, Semaphore inFlight) {
+        this(clientSocket, inFlight, null);
+    }
+
+    /**
+     * @param clientSocket
+     * @param inFlight caps the requests handled at the same time, may be null
+     * @param accessLog gets a line for the request, may be null
+     */
+    public ClientHandler(Socket clientSocket, Semaphore inFlight, AccessLog accessLog) {
+        this.inFlight = inFlight;
+        this.accessLog = accessLog;
+        this.client = clientSocket.getInetAddress();
         try {
             //Set local socket to clientSocket received via constructor
             in = clientSocket.getInputStream();
             out = clientSocket.getOutputStream();
+            // only set if the socket was accepted through a ServerSocketChannel
+            socketChannel = clientSocket.getChannel();
 
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }//end constructor
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request line and headers and returns the requested file name
+     *
+     * @param headers gets the request headers, with lower case names
+     * @return the file name from the GET line or null if there was none
+     */
+    public String readFilename(InputStream inStream, Map<String, String> headers)
+            throws IOException {
 
-        byte[] response = null;
         BufferedReader in = null;
 
-        try {
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        in = new BufferedReader(
+                new InputStreamReader(inStream, "UTF-8"));
+
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
-
-            String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
-            if (line != null && !line.trim().equals("")) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
-                    filename = st.nextToken();
-                    if (filename.startsWith("/")) {
-                        filename = filename.substring(1);
-                    }
+        String filename = null;
+        String line = in.readLine();
+        if (line != null && !line.trim().equals("")) {
+            StringTokenizer st = new StringTokenizer(line);
+            if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
+                filename = st.nextToken();
+                if (filename.startsWith("/")) {
+                    filename = filename.substring(1);
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
-
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                        "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: "
-                            + filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+        }
+        // the headers tell us about ranges and cached copies, they end with an
+        // empty line
+        while (line != null && !line.isEmpty()) {
+            line = in.readLine();
+            if (line != null && line.indexOf(':') > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
         }
-        System.out.println("RESPONSE GENERATED!");
+        return filename;
+    }
+
+    /**
+     * Creates the response for requests that are not answered with a file
+     */
+    public byte[] createResponse(String filename) {
+
+        byte[] body = null;
+        String status = null;
+
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            status = "400 Bad Request";
+            body = "<html>Illegal request: no GET</html>".getBytes();
+        } else {
+            status = "404 Not Found";
+            body = ("<html>File not found: "
+                    + filename + "</html>").getBytes();
+        }
+
+        byte[] head = FileResponse.header(status, "text/html; charset=utf-8", body.length, "");
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
         return response;
     }
 
@@ -158,8 +371,15 @@ class ClientHandler implements Runnable {
 
         byte[] result = new byte[(int) f.length()];
 
-        try {
-            new FileInputStream(f).read(result);
+        try (FileInputStream file = new FileInputStream(f)) {
+            int offset = 0;
+            while (offset < result.length) {
+                int numRead = file.read(result, offset, result.length - offset);
+                if (numRead < 0) {
+                    break;
+                }
+                offset += numRead;
+            }
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -169,11 +389,45 @@ class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        System.out.println("Starting thread");
+        long start = System.nanoTime();
+        String filename = null;
+        int status = 0;
+        long bytes = -1;
         try {
-            out.write(createResponse(in));
+            if (inFlight != null) {
+                inFlight.acquire();
+            }
+            try {
+                Map<String, String> headers = new HashMap<>();
+                filename = readFilename(in, headers);
+                File file = filename == null ? null : new File(filename);
+                if (file != null && file.isFile()) {
+                    // without a channel (socket not opened through a
+                    // ServerSocketChannel) the file is copied through a buffer
+                    WritableByteChannel target = socketChannel != null
+                            ? socketChannel : Channels.newChannel(out);
+                    FileResponse.Sent sent = FileResponse.write(file, headers, target);
+                    status = sent.status;
+                    bytes = sent.bytes;
+                } else {
+                    byte[] response = createResponse(filename);
+                    out.write(response);
+                    status = filename == null ? 400 : 404;
+                    bytes = response.length;
+                }
+            } finally {
+                if (inFlight != null) {
+                    inFlight.release();
+                }
+                if (accessLog != null) {
+                    accessLog.log(client, filename != null ? "GET" : null, filename, null, status, bytes,
+                            System.nanoTime() - start);
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } finally {
             try {
                 in.close();
@@ -182,7 +436,5 @@ class ClientHandler implements Runnable {
                 ex.printStackTrace();
             }
         }
-
-        System.out.println("Ending thread");
     }
 }
@@ -0,0 +1,84 @@
+/*
+Compares the RequestParser with the way the server used to read a request:
+a new BufferedReader/InputStreamReader per request, readLine and substring for
+every header line.
+
+Both sides parse the same browser-like request and look at the path and the
+Connection header, the console echo is turned off.
+
+Run through
+
+gradle jmh
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DfunHttpServer.log=warn")
+public class RequestParserBenchmark {
+    private final static byte[] REQUEST = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+            + "Host: localhost:9000\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "\r\n").getBytes(StandardCharsets.UTF_8);
+
+    private RequestParser parser;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        parser = new RequestParser();
+        buffer = ByteBuffer.allocate(Request.MAX_HEADER);
+    }
+
+    @Benchmark
+    public void byteParser(Blackhole bh) throws IOException {
+        buffer.clear();
+        buffer.put(REQUEST).flip();
+        Request request = parser.parse(buffer);
+        bh.consume(request.getPath());
+        bh.consume(request.isKeepAlive());
+    }
+
+    @Benchmark
+    public void bufferedReader(Blackhole bh) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(REQUEST), "UTF-8"));
+        String request = null;
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            if (line.startsWith("GET")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace + 1);
+                request = line.substring(firstSpace + 2, secondSpace);
+            } else if (line.indexOf(':') > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        bh.consume(request);
+        bh.consume(!"close".equalsIgnoreCase(headers.get("connection")));
+    }
+}
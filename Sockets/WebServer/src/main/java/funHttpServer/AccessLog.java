@@ -0,0 +1,314 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Access log with one line per request in the Common Log Format plus the time
+ * the request took:
+ *
+ * 127.0.0.1 - - [18/Oct/2026:16:19:00 +0000] "GET /index.html HTTP/1.1" 200 1342 245us
+ *
+ * The request threads only put the fields of a request into a slot of a ring
+ * buffer (no lock, no allocation, no formatting). A background thread takes all
+ * records that came in since its last round, formats them and writes them to
+ * the file with one write. When the ring is full the record is dropped instead
+ * of making the request wait; the number of dropped records goes into the log
+ * with the next batch. The file is rotated when it grows over a limit
+ * (access.log -> access.log.1 -> access.log.2 ...).
+ *
+ * Used by funHttpServer and httpServer. The SimpleWebServer is a project of
+ * its own and has a copy of this class.
+ */
+public class AccessLog {
+    /**
+     * Number of records that may wait for the writer, a power of two
+     */
+    public final static int CAPACITY = 8192;
+
+    /**
+     * Size at which the file is rotated
+     */
+    public final static long MAX_BYTES = 10 * 1024 * 1024;
+
+    /**
+     * Number of rotated files kept besides the current one
+     */
+    public final static int KEEP = 5;
+
+    /**
+     * Milliseconds between two batches
+     */
+    public final static long FLUSH_INTERVAL = 100;
+
+    private final static DateTimeFormatter TIME = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * One record, filled by a request thread and read by the writer
+     */
+    private static class Slot {
+        long time;
+        InetAddress client;
+        String method;
+        String path;
+        String version;
+        int status;
+        long bytes;
+        long nanos;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    // per slot the position it is free for (position) or readable at (position + 1)
+    private final AtomicLongArray sequences;
+    // next position a request thread claims
+    private final AtomicLong tail = new AtomicLong();
+    // next position the writer reads, only touched while holding the lock on this
+    private long head = 0;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    private final AtomicLong written = new AtomicLong();
+
+    private final File file;
+    private final long maxBytes;
+    private final int keep;
+    private FileChannel channel;
+    private final Thread writer;
+    private final Thread hook;
+
+    // formatting state of the writer
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private long formattedSecond = -1;
+    private String formattedTime;
+
+    /**
+     * Opens (appends to) the log and starts the writer thread
+     *
+     * @param file log file, created if missing
+     */
+    public AccessLog(File file) throws IOException {
+        this(file, CAPACITY, MAX_BYTES, KEEP);
+    }
+
+    /**
+     * @param capacity records that may wait, rounded up to a power of two
+     * @param maxBytes size at which the file is rotated
+     * @param keep     number of rotated files kept
+     */
+    public AccessLog(File file, int capacity, long maxBytes, int keep) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        open();
+
+        writer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                    flush();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        hook = new Thread(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Stops the writer thread, writes the records that are left and closes the
+     * file. Records logged afterwards are lost.
+     */
+    public void close() throws IOException {
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down, the hook flushes
+        }
+        synchronized (this) {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Records a request without waiting. All values are formatted later by the
+     * writer thread.
+     *
+     * @param client  address of the client
+     * @param method  request method, null if there was no request line
+     * @param path    request target without the leading /, null if there was
+     *                none
+     * @param version protocol version, e.g. HTTP/1.1
+     * @param status  status code of the response
+     * @param bytes   bytes sent, negative if unknown
+     * @param nanos   time it took to answer
+     * @return false if the record was dropped because the writer is behind
+     */
+    public boolean log(InetAddress client, String method, String path, String version, int status, long bytes,
+            long nanos) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long free = sequences.get(index) - position;
+            if (free == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (free < 0) {
+                dropped.incrementAndGet(); // the writer has not taken this slot yet
+                return false;
+            } else {
+                position = tail.get(); // another thread claimed it first
+            }
+        }
+        int index = (int) position & mask;
+        Slot slot = slots[index];
+        slot.time = System.currentTimeMillis();
+        slot.client = client;
+        slot.method = method;
+        slot.path = path;
+        slot.version = version;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.nanos = nanos;
+        sequences.set(index, position + 1); // publishes the slot to the writer
+        return true;
+    }
+
+    /**
+     * Writes all records that are complete. Called by the writer thread every
+     * FLUSH_INTERVAL ms and on shutdown.
+     */
+    public synchronized void flush() throws IOException {
+        batch.setLength(0);
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break; // empty, or the next record is still being filled
+            Slot slot = slots[index];
+            format(slot);
+            slot.client = null;
+            slot.method = null;
+            slot.path = null;
+            slot.version = null;
+            sequences.set(index, head + slots.length); // free for the next round
+            head++;
+            written.incrementAndGet();
+        }
+        long lost = dropped.get();
+        if (lost > droppedReported) {
+            batch.append("# ").append(lost - droppedReported).append(" records dropped, the log could not keep up\n");
+            droppedReported = lost;
+        }
+        if (batch.length() == 0)
+            return;
+
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        if (channel.size() >= maxBytes)
+            rotate();
+    }
+
+    private void format(Slot slot) {
+        long second = slot.time / 1000;
+        if (second != formattedSecond) {
+            formattedTime = TIME.format(Instant.ofEpochMilli(slot.time));
+            formattedSecond = second;
+        }
+        batch.append(slot.client != null ? slot.client.getHostAddress() : "-").append(" - - [")
+                .append(formattedTime).append("] \"");
+        if (slot.method != null) {
+            batch.append(slot.method);
+            if (slot.path != null)
+                batch.append(" /").append(slot.path);
+            if (slot.version != null)
+                batch.append(' ').append(slot.version);
+        } else {
+            batch.append('-');
+        }
+        batch.append("\" ").append(slot.status).append(' ');
+        if (slot.bytes >= 0)
+            batch.append(slot.bytes);
+        else
+            batch.append('-');
+        batch.append(' ').append(slot.nanos / 1000).append("us\n");
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * access.log.(keep-1) -> access.log.keep, ..., access.log -> access.log.1,
+     * then starts a new access.log
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        for (int i = keep - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists())
+                Files.move(older.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (keep > 0)
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.delete(file.toPath());
+        open();
+    }
+
+    /**
+     * @return records dropped because the writer was behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return records written to the file
+     */
+    public long getWritten() {
+        return written.get();
+    }
+}
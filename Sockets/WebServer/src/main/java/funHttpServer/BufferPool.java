@@ -0,0 +1,61 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized buffers, so connections do not allocate a new read or
+ * write buffer each. Buffers are taken when a connection opens and given back when it
+ * closes; at most maxPooled free buffers are kept, the rest is left to the
+ * garbage collector.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity of every buffer
+     * @param maxPooled  number of free buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, false);
+    }
+
+    /**
+     * @param direct direct buffers, for buffers that are written to channels (the
+     *               parser needs heap buffers)
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer (write mode)
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used by the caller afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize)
+            return;
+        buffer.clear();
+        if (pooled.incrementAndGet() <= maxPooled)
+            free.offer(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+}
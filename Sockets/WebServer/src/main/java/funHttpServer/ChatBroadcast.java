@@ -0,0 +1,268 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Live chat messages for /chat/stream (Server-Sent Events). Every message is
+ * encoded once into an event ("id: 17\ndata: <p>...</p>\n\n") in a read-only
+ * buffer, the last CAPACITY events are kept in a ring. Subscribers get
+ * duplicates of the buffers (own position, shared bytes), so delivering a
+ * message costs one write of that message per subscriber no matter how long the
+ * history is. A subscriber remembers the id of the last event it got and asks
+ * for everything after it; a client that reconnects with Last-Event-ID gets the
+ * events it missed, as far as they are still in the ring.
+ *
+ * The blocking engines run a Subscription per client, a thread that waits for
+ * new events and writes them into the response. Waiting uses a Condition
+ * instead of Object.wait, so a virtual thread does not pin its carrier. With a
+ * pool of workers every subscriber holds a worker, so the server lowers the
+ * number of subscribers (see setMaxSubscribers). The nio engine registers a
+ * listener instead and writes the events from the event loop, a subscriber
+ * costs no thread at all there.
+ */
+class ChatBroadcast {
+    /**
+     * Number of events kept for subscribers that are behind or reconnect
+     */
+    public final static int CAPACITY = 256;
+
+    /**
+     * Clients that may subscribe at the same time
+     */
+    public final static int MAX_SUBSCRIBERS = 10000;
+
+    /**
+     * Milliseconds without a message after which subscribers get a comment, so
+     * proxies keep the connection open and dead clients are noticed
+     */
+    public final static long HEARTBEAT = 15000;
+
+    /**
+     * Sent to every new subscriber: the reconnect delay for EventSource
+     */
+    final static ByteBuffer HELLO = encode("retry: 3000\n\n");
+
+    /**
+     * Sent when there was no message for HEARTBEAT ms
+     */
+    final static ByteBuffer KEEP_ALIVE = encode(": keep-alive\n\n");
+
+    /**
+     * Events a subscriber has not seen yet
+     */
+    static class Events {
+        // oldest first, duplicates the subscriber may consume
+        final ByteBuffer[] buffers;
+        // id of the last of them, what the subscriber has afterwards
+        final long lastId;
+
+        Events(ByteBuffer[] buffers, long lastId) {
+            this.buffers = buffers;
+            this.lastId = lastId;
+        }
+    }
+
+    private final ByteBuffer[] ring = new ByteBuffer[CAPACITY];
+    // id of the newest event, events have the ids 1, 2, 3, ...
+    private long lastId = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private volatile int maxSubscribers = MAX_SUBSCRIBERS;
+
+    /**
+     * Encodes the message as an event and wakes up all subscribers
+     *
+     * @param html the message as it is shown on the chat page
+     */
+    public void publish(String html) {
+        lock.lock();
+        try {
+            long id = lastId + 1;
+            StringBuilder event = new StringBuilder(html.length() + 32);
+            event.append("id: ").append(id).append('\n');
+            // a line break would end the data field, every line gets its own
+            for (String line : html.strip().split("\r\n|\r|\n"))
+                event.append("data: ").append(line).append('\n');
+            event.append('\n');
+            ring[(int) (id % CAPACITY)] = encode(event.toString());
+            lastId = id;
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable listener : listeners)
+            listener.run();
+    }
+
+    /**
+     * The events after the given one
+     *
+     * @param after id of the last event the subscriber has, 0 for none
+     * @return the events, none if there are no new ones. Events that dropped
+     *         out of the ring are skipped.
+     */
+    public Events since(long after) {
+        lock.lock();
+        try {
+            return copy(after);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until there are events after the given one
+     *
+     * @param after   id of the last event the subscriber has
+     * @param timeout milliseconds to wait at most
+     * @return the events, none if nothing came in time
+     */
+    public Events await(long after, long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (lastId <= after && nanos > 0)
+                nanos = published.awaitNanos(nanos);
+            return copy(after);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return id of the newest event, 0 if there was none yet
+     */
+    public long getLastId() {
+        lock.lock();
+        try {
+            return lastId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets the listener know about every published event (it runs on the thread
+     * that publishes, so it should only wake someone up)
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param max clients that may subscribe at the same time, at most
+     *            MAX_SUBSCRIBERS
+     */
+    public void setMaxSubscribers(int max) {
+        maxSubscribers = Math.min(max, MAX_SUBSCRIBERS);
+    }
+
+    /**
+     * @return true if no more clients should subscribe
+     */
+    public boolean isFull() {
+        return subscribers.get() >= maxSubscribers;
+    }
+
+    public void subscribe() {
+        subscribers.incrementAndGet();
+    }
+
+    /**
+     * Subscribes unless the limit is reached, also when other clients subscribe
+     * at the same time
+     *
+     * @return false if the client did not subscribe
+     */
+    public boolean trySubscribe() {
+        while (true) {
+            int current = subscribers.get();
+            if (current >= maxSubscribers)
+                return false;
+            if (subscribers.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    public void unsubscribe() {
+        subscribers.decrementAndGet();
+    }
+
+    /**
+     * @return clients subscribed right now
+     */
+    public int getSubscribers() {
+        return subscribers.get();
+    }
+
+    private Events copy(long after) {
+        long first = Math.max(after + 1, Math.max(1, lastId - CAPACITY + 1));
+        if (first > lastId)
+            return new Events(new ByteBuffer[0], after);
+        ByteBuffer[] events = new ByteBuffer[(int) (lastId - first + 1)];
+        for (long id = first; id <= lastId; id++)
+            events[(int) (id - first)] = ring[(int) (id % CAPACITY)].duplicate();
+        return new Events(events, lastId);
+    }
+
+    private static ByteBuffer encode(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * The body of a /chat/stream response on the blocking engines: sends the
+     * events as they are published until the client goes away
+     */
+    class Subscription implements Response.Body {
+        private long lastId;
+
+        /**
+         * @param lastId id of the last event the client has (Last-Event-ID), the
+         *               newest one for a new client
+         */
+        Subscription(long lastId) {
+            this.lastId = lastId;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            WritableByteChannel channel = Channels.newChannel(out);
+            channel.write(HELLO.duplicate());
+            out.flush();
+            // others subscribed since the handler checked isFull(): end the stream,
+            // the client reconnects after the retry delay
+            if (!trySubscribe())
+                return;
+            try {
+                while (true) {
+                    Events events = await(lastId, HEARTBEAT);
+                    if (events.buffers.length == 0)
+                        channel.write(KEEP_ALIVE.duplicate()); // fails once the client is gone
+                    for (ByteBuffer event : events.buffers)
+                        channel.write(event);
+                    lastId = events.lastId;
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                unsubscribe();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Chat history for /chat. The most recent messages are kept in memory in a ring
+ * buffer, so showing the chat does not read the log file again. Every message is
+ * also appended to the log file (chat.html). The writes are batched: a
+ * background thread writes everything that came in since its last round and
+ * forces it to disk once, instead of opening and syncing the file for every
+ * message. A crash can lose the messages of the last FLUSH_INTERVAL ms.
+ *
+ * The page shows the last WINDOW messages, so building it costs the same no
+ * matter how long the history is.
+ */
+class ChatStore {
+    /**
+     * Number of messages kept in memory
+     */
+    public final static int CAPACITY = 1000;
+
+    /**
+     * Number of messages shown on the page
+     */
+    public final static int WINDOW = 100;
+
+    /**
+     * Milliseconds between two writes of the log
+     */
+    public final static long FLUSH_INTERVAL = 100;
+
+    private final String[] ring;
+    // number of messages ever added, ring[(count - 1) % ring.length] is the newest
+    private long count = 0;
+    private final int window;
+
+    // page for the current count, null when a message came in since
+    private byte[] page = null;
+
+    private final FileChannel log;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final Thread flusher;
+    private final Thread hook;
+
+    /**
+     * Opens the log and loads the newest messages from it
+     *
+     * @param file log, created if missing
+     */
+    public ChatStore(File file) throws IOException {
+        this(file, CAPACITY, WINDOW);
+    }
+
+    public ChatStore(File file, int capacity, int window) throws IOException {
+        this.ring = new String[capacity];
+        this.window = Math.min(window, capacity);
+
+        // every message is its own <html> block, that is how they end up in the log
+        if (file.exists()) {
+            String history = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            int start = 0;
+            int end;
+            while ((end = history.indexOf("</html>", start)) >= 0) {
+                int next = history.indexOf('\n', end);
+                next = next < 0 ? history.length() : next + 1;
+                add(history.substring(start, next));
+                start = next;
+            }
+        }
+
+        log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+
+        flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                    flush();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "chat-log");
+        flusher.setDaemon(true);
+        flusher.start();
+        hook = new Thread(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Stops the flusher, writes the messages that are left and closes the log
+     */
+    public void close() throws IOException {
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down, the hook flushes
+        }
+        synchronized (log) {
+            flush();
+            log.close();
+        }
+    }
+
+    /**
+     * Adds a message, it is written to the log with the next batch
+     *
+     * @return the message as HTML, as it is shown on the page
+     */
+    public String append(String name, String msg) {
+        String html = String.format("""
+                <html>
+                <p><strong>%s:</strong> %s</p>
+                </html>
+                """, name, msg);
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            add(html);
+            pending.write(bytes, 0, bytes.length);
+        }
+        return html;
+    }
+
+    private synchronized void add(String html) {
+        ring[(int) (count % ring.length)] = html;
+        count++;
+        page = null;
+    }
+
+    /**
+     * @return the last messages, oldest first, as UTF-8 HTML. Built once per new
+     *         message and shared afterwards, must not be modified by the caller
+     */
+    public synchronized byte[] render() {
+        if (page == null) {
+            long shown = Math.min(count, window);
+            StringBuilder html = new StringBuilder();
+            if (count > shown)
+                html.append("<html>\n<p><em>").append(count - shown).append(" earlier messages</em></p>\n</html>\n");
+            for (long i = count - shown; i < count; i++)
+                html.append(ring[(int) (i % ring.length)]);
+            page = html.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return page;
+    }
+
+    /**
+     * Writes the messages that are not in the log yet and forces them to disk
+     */
+    public void flush() throws IOException {
+        // the flusher and the shutdown hook may both get here, the batches have to
+        // reach the log in the order they were taken
+        synchronized (log) {
+            ByteArrayOutputStream batch;
+            synchronized (this) {
+                if (pending.size() == 0)
+                    return;
+                batch = pending;
+                pending = new ByteArrayOutputStream();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining())
+                log.write(buffer);
+            log.force(false);
+        }
+    }
+
+    /**
+     * @return number of messages since the log was started
+     */
+    public synchronized long size() {
+        return count;
+    }
+}
@@ -0,0 +1,128 @@
+package funHttpServer;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding support: picks gzip or deflate from the Accept-Encoding
+ * header of the request and compresses bodies, either all at once (for the
+ * cached pages) or as a stream (for everything else).
+ */
+class Compression {
+    /**
+     * Bodies smaller than this are sent as they are, the gzip header and the
+     * CPU time are not worth it
+     */
+    public final static int THRESHOLD = 1024;
+
+    /**
+     * Level for responses that are compressed on every request
+     */
+    public final static int STREAM_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    public final static String GZIP = "gzip";
+    public final static String DEFLATE = "deflate";
+
+    /**
+     * Chooses the encoding for a response. gzip is preferred over deflate when
+     * the client likes both the same.
+     *
+     * @param acceptEncoding the Accept-Encoding header, e.g. "gzip, deflate;q=0.5"
+     * @return GZIP, DEFLATE or null for no encoding
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException nfe) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip"))
+                gzip = q;
+            else if (coding.equals(DEFLATE))
+                deflate = q;
+            else if (coding.equals("*"))
+                any = q;
+        }
+        // "*" stands for every coding that is not listed
+        if (gzip < 0)
+            gzip = any;
+        if (deflate < 0)
+            deflate = any;
+        if (gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * @return true for text types that usually get much smaller, images and the
+     *         like are compressed already. Event streams are not compressed,
+     *         the compressor would hold the events back.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+        String type = contentType.toLowerCase();
+        if (type.startsWith("text/event-stream"))
+            return false;
+        return type.startsWith("text/") || type.startsWith("application/json")
+                || type.startsWith("application/javascript") || type.startsWith("application/xml")
+                || type.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Wraps the stream so everything written to it is compressed. Closing the
+     * returned stream finishes the compressed data and closes out.
+     *
+     * @param level Deflater level, e.g. Deflater.BEST_SPEED
+     */
+    public static DeflaterOutputStream wrap(OutputStream out, String encoding, int level) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, Response.CHUNK_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        // HTTP's deflate is the zlib format, which is what Deflater writes by default
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, Response.CHUNK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compresses the whole body
+     */
+    public static byte[] compress(byte[] body, String encoding, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (DeflaterOutputStream compressed = wrap(out, encoding, level)) {
+            compressed.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by ByteArrayOutputStream
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Bytes on the wire versus CPU time for the compression of the responses of the
+fun web server.
+
+Compresses typical bodies (the cached pages from www/, a /github page, a chat
+page and the /json answer) with gzip and deflate at different levels and
+prints the compressed size and the time one compression takes. The cached
+pages are compressed once with the best level, everything else on every
+request with the default level.
+
+Run through
+
+gradle CompressionBenchmark
+
+or with arguments: [iterations(int)]
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+class CompressionBenchmark {
+    private final static int[] LEVELS = { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION };
+
+    public static void main(String args[]) throws IOException {
+        int iterations = 2000;
+        try {
+            if (args.length > 0)
+                iterations = Integer.parseInt(args[0]);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Expected arguments: [iterations(int)]");
+            System.exit(1);
+        }
+
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        bodies.put("/", WebServer.readFileInBytes(new File("www/root.html")));
+        bodies.put("/random", WebServer.readFileInBytes(new File("www/index.html")));
+        bodies.put("/github (30 repos)", githubPage(30));
+        bodies.put("/chat (100 msgs)", chatPage(100));
+        bodies.put("/json", "{\"header\":\"streets\",\"image\":\"https://iili.io/JV1pSV.jpg\"}"
+                .getBytes(StandardCharsets.UTF_8));
+
+        System.out.println("iterations=" + iterations + " threshold=" + Compression.THRESHOLD + " bytes");
+        System.out.println("body\t\t\tbytes\tencoding\tlevel\tbytes\tratio\tus/op");
+        for (Map.Entry<String, byte[]> body : bodies.entrySet()) {
+            for (String encoding : new String[] { Compression.GZIP, Compression.DEFLATE }) {
+                for (int level : LEVELS) {
+                    byte[] compressed = Compression.compress(body.getValue(), encoding, level);
+                    double micros = time(body.getValue(), encoding, level, iterations);
+                    System.out.printf("%-20s\t%d\t%s\t\t%d\t%d\t%.2f\t%.1f%n", body.getKey(), body.getValue().length,
+                            encoding, level, compressed.length, compressed.length / (double) body.getValue().length,
+                            micros);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return microseconds per compression, after a warm up
+     */
+    private static double time(byte[] body, String encoding, int level, int iterations) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++)
+            sink += Compression.compress(body, encoding, level).length;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += Compression.compress(body, encoding, level).length;
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42)
+            System.out.println(); // keeps the loop from being optimized away
+        return elapsed / 1000.0 / iterations;
+    }
+
+    private static byte[] githubPage(int repos) {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < repos; i++) {
+            page.append(String.format("""
+                    <html>
+                        <h4>Repo #%d:</h4>
+                        <ul>
+                            <li><strong>Name:</strong> %s</li>
+                            <li><strong>ID:</strong> %d</li>
+                            <li><strong>Owner:</strong> %s</li>
+                        </ul>
+                        <br>
+                    </html>
+                    """, i, "ser321-repo-" + i, 100000000L + i * 7919L, "amehlhase316"));
+        }
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] chatPage(int messages) {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            page.append(String.format("""
+                    <html>
+                    <p><strong>%s:</strong> %s</p>
+                    </html>
+                    """, "user" + (i % 7), "message number " + i + " about the assignment"));
+        }
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,286 @@
+package funHttpServer;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The file list of a directory for the root page. The directory is listed once,
+ * after that a DirectoryWatcher keeps the index up to date: a changed file is
+ * looked at on its own (one stat) and put into or removed from the index,
+ * instead of listing the whole directory again on every request.
+ *
+ * The list is shown in pages of PAGE_SIZE files, sorted by name, size or last
+ * modification. Every order is sorted once per change of the directory and the
+ * HTML of a page is built once and kept until the directory changes, so a
+ * directory with tens of thousands of files costs a lookup per request.
+ */
+class DirectoryIndex {
+    /**
+     * Files shown on one page
+     */
+    public final static int PAGE_SIZE = 500;
+
+    /**
+     * Orders the files can be shown in
+     */
+    public enum Sort {
+        NAME(Comparator.comparing((Entry e) -> e.name)),
+        SIZE(Comparator.comparingLong((Entry e) -> e.size).thenComparing(e -> e.name)),
+        MODIFIED(Comparator.comparingLong((Entry e) -> e.modified).thenComparing(e -> e.name));
+
+        final Comparator<Entry> comparator;
+
+        Sort(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+
+        /**
+         * @return the order with the name (e.g. "size"), NAME if there is none
+         */
+        static Sort of(String name) {
+            for (Sort sort : values()) {
+                if (sort.name().equalsIgnoreCase(name))
+                    return sort;
+            }
+            return NAME;
+        }
+
+        String parameter() {
+            return name().toLowerCase();
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final long size;
+        final long modified;
+
+        Entry(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * The files of the directory in one order, as they were at one version
+     */
+    private static class Sorted {
+        final long version;
+        final Entry[] entries;
+
+        Sorted(long version, Entry[] entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+
+    private final File directory;
+    // name to file, guarded by this
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    // bumped on every change, guarded by this
+    private long version = 0;
+    private final Sorted[] sorted = new Sorted[Sort.values().length];
+    // rendered pages of the current version, key e.g. "size:desc:3"
+    private final Map<String, String> pages = new ConcurrentHashMap<>();
+
+    /**
+     * Lists the directory and keeps the index up to date with the watcher. Create
+     * the index before caches that use it register with the same watcher, so the
+     * index has the change when they are invalidated.
+     */
+    public DirectoryIndex(File directory, DirectoryWatcher watcher) {
+        this.directory = directory;
+        watcher.addListener(this::update);
+        rescan();
+    }
+
+    /**
+     * Applies the change of a file, or lists the whole directory again
+     *
+     * @param name the file that was created, changed or deleted, null if events
+     *             were lost
+     */
+    public void update(String name) {
+        if (name == null) {
+            rescan();
+            return;
+        }
+        File file = new File(directory, name);
+        // the stat is done before taking the lock
+        Entry entry = file.exists() ? new Entry(name, file.length(), file.lastModified()) : null;
+        synchronized (this) {
+            if (entry != null)
+                entries.put(name, entry);
+            else
+                entries.remove(name);
+            changed();
+        }
+    }
+
+    private void rescan() {
+        File[] files = directory.listFiles();
+        synchronized (this) {
+            entries.clear();
+            if (files != null) {
+                for (File file : files)
+                    entries.put(file.getName(), new Entry(file.getName(), file.length(), file.lastModified()));
+            }
+            changed();
+        }
+    }
+
+    private void changed() {
+        version++;
+        pages.clear();
+    }
+
+    /**
+     * @return number of files in the directory
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of pages, at least 1
+     */
+    public int pages() {
+        return Math.max(1, (size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * The HTML list of one page of files, built on the first request after a
+     * change
+     *
+     * @param sort       order of the files
+     * @param descending largest, newest or last name first
+     * @param page       page number starting at 1, clamped to the pages there are
+     */
+    public String render(Sort sort, boolean descending, int page) {
+        String key = sort.parameter() + (descending ? ":desc:" : ":asc:") + page;
+        String html = pages.get(key);
+        if (html != null)
+            return html;
+
+        long renderVersion;
+        Entry[] files;
+        synchronized (this) {
+            renderVersion = version;
+            files = sorted(sort);
+        }
+        int pageCount = Math.max(1, (files.length + PAGE_SIZE - 1) / PAGE_SIZE);
+        page = Math.max(1, Math.min(page, pageCount));
+        html = render(files, sort, descending, page, pageCount);
+        synchronized (this) {
+            // not stored if the directory changed while rendering
+            if (version == renderVersion)
+                pages.put(key, html);
+        }
+        return html;
+    }
+
+    /**
+     * @return the files in the order, sorted again only if the directory changed
+     */
+    private Entry[] sorted(Sort sort) {
+        Sorted s = sorted[sort.ordinal()];
+        if (s == null || s.version != version) {
+            Entry[] files = entries.values().toArray(new Entry[0]);
+            if (sort != Sort.NAME) // the TreeMap is sorted by name already
+                Arrays.sort(files, sort.comparator);
+            s = new Sorted(version, files);
+            sorted[sort.ordinal()] = s;
+        }
+        return s.entries;
+    }
+
+    private static String render(Entry[] files, Sort sort, boolean descending, int page, int pageCount) {
+        if (files.length == 0)
+            return "No files in directory";
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        StringBuilder builder = new StringBuilder(64 * Math.min(files.length, PAGE_SIZE) + 512);
+        builder.append("<p>Sort by");
+        for (Sort s : Sort.values()) {
+            builder.append(' ');
+            link(builder, s, s == sort && !descending, 1, s.parameter());
+        }
+        builder.append(" | ");
+        link(builder, sort, !descending, 1, descending ? "ascending" : "descending");
+        builder.append("</p>\n<ul>\n");
+
+        int first = (page - 1) * PAGE_SIZE;
+        int last = Math.min(files.length, first + PAGE_SIZE);
+        for (int i = first; i < last; i++) {
+            Entry file = files[descending ? files.length - 1 - i : i];
+            builder.append("<li>").append(escape(file.name)).append(" <small>").append(file.size).append(" bytes, ")
+                    .append(format.format(new Date(file.modified))).append("</small></li>\n");
+        }
+        builder.append("</ul>\n");
+
+        if (pageCount > 1) {
+            builder.append("<p>Page ").append(page).append(" of ").append(pageCount);
+            if (page > 1) {
+                builder.append(' ');
+                link(builder, sort, descending, page - 1, "previous");
+            }
+            if (page < pageCount) {
+                builder.append(' ');
+                link(builder, sort, descending, page + 1, "next");
+            }
+            builder.append("</p>\n");
+        }
+        return builder.toString();
+    }
+
+    private static void link(StringBuilder builder, Sort sort, boolean descending, int page, String text) {
+        builder.append("<a href=\"/?sort=").append(sort.parameter());
+        if (descending)
+            builder.append("&amp;order=desc");
+        if (page > 1)
+            builder.append("&amp;page=").append(page);
+        builder.append("\">").append(text).append("</a>");
+    }
+
+    /**
+     * File names may contain characters that mean something in HTML
+     */
+    static String escape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '"':
+                replacement = "&quot;";
+                break;
+            default:
+                replacement = null;
+            }
+            if (replacement != null && escaped == null)
+                escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            if (escaped != null) {
+                if (replacement != null)
+                    escaped.append(replacement);
+                else
+                    escaped.append(c);
+            }
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Watches a directory with a WatchService on a background thread and tells the
+ * listeners which file changed, so caches built from the directory can be
+ * invalidated instead of re-reading the files on every request.
+ */
+class DirectoryWatcher {
+    private final Path directory;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean watching = false;
+    private WatchService service = null;
+
+    /**
+     * Starts watching the directory
+     *
+     * @param directory directory to watch (not recursive)
+     */
+    public DirectoryWatcher(File directory) {
+        this.directory = directory.toPath();
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            this.directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            WatchService watched = service;
+            Thread thread = new Thread(() -> watch(watched), "watch-" + directory);
+            thread.setDaemon(true);
+            thread.start();
+            watching = true;
+        } catch (IOException e) {
+            Log.warn("Cannot watch " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return false if the directory cannot be watched, listeners are then never
+     *         called and nothing should be cached
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Registers a listener that is called with the name of a file that was
+     * created, changed or deleted, or with null if events were lost and everything
+     * has to be considered changed
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stops watching, the listeners are not called any more
+     */
+    public void close() {
+        watching = false;
+        if (service == null)
+            return;
+        try {
+            service.close(); // ends the watch thread
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                String name = null;
+                if (event.kind() != StandardWatchEventKinds.OVERFLOW)
+                    name = event.context().toString();
+                for (Consumer<String> listener : listeners)
+                    listener.accept(name);
+            }
+            if (!key.reset()) {
+                // the directory is gone, drop everything one last time
+                for (Consumer<String> listener : listeners)
+                    listener.accept(null);
+                watching = false;
+                return;
+            }
+        }
+    }
+}
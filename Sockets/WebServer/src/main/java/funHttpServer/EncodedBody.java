@@ -0,0 +1,61 @@
+package funHttpServer;
+
+import java.util.zip.Deflater;
+
+/**
+ * A body that is sent often (a cached page), kept ready in every encoding so
+ * it is compressed once and not on every request. The compressed versions are
+ * only kept if the body is at least Compression.THRESHOLD bytes and they
+ * actually are smaller.
+ */
+class EncodedBody {
+    private final byte[] identity;
+    private final byte[] gzip;
+    private final byte[] deflate;
+
+    private EncodedBody(byte[] identity, byte[] gzip, byte[] deflate) {
+        this.identity = identity;
+        this.gzip = gzip;
+        this.deflate = deflate;
+    }
+
+    /**
+     * Compresses the body with the best compression, it is only done once
+     */
+    public static EncodedBody of(byte[] body) {
+        if (body.length < Compression.THRESHOLD)
+            return new EncodedBody(body, null, null);
+        return new EncodedBody(body, smaller(body, Compression.GZIP), smaller(body, Compression.DEFLATE));
+    }
+
+    private static byte[] smaller(byte[] body, String encoding) {
+        byte[] compressed = Compression.compress(body, encoding, Deflater.BEST_COMPRESSION);
+        return compressed.length < body.length ? compressed : null;
+    }
+
+    /**
+     * @return the uncompressed body
+     */
+    public byte[] getBytes() {
+        return identity;
+    }
+
+    /**
+     * @param encoding Compression.GZIP or Compression.DEFLATE
+     * @return the body in this encoding, null if it is not kept compressed
+     */
+    public byte[] getBytes(String encoding) {
+        if (Compression.GZIP.equals(encoding))
+            return gzip;
+        if (Compression.DEFLATE.equals(encoding))
+            return deflate;
+        return null;
+    }
+
+    /**
+     * @return memory used by all versions
+     */
+    public long size() {
+        return identity.length + (gzip == null ? 0 : gzip.length) + (deflate == null ? 0 : deflate.length);
+    }
+}
@@ -0,0 +1,189 @@
+package funHttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the GitHub REST API used by the /github endpoint. Requests are
+ * sent with the non-blocking java.net.http.HttpClient and the answers are cached
+ * by query:
+ *
+ * - a cached answer younger than the TTL is returned without asking GitHub
+ * - an older answer is revalidated with its ETag (If-None-Match), a 304 from
+ *   GitHub refreshes it without transferring the body again
+ * - concurrent requests for the same query share one request to GitHub
+ * - at most MAX_ENTRIES queries are kept, the least recently used goes first
+ */
+class GitHubClient {
+    /**
+     * Default for the milliseconds a cached answer is used without asking GitHub
+     */
+    public final static long TTL = 60 * 1000;
+
+    /**
+     * Number of queries kept in the cache
+     */
+    public final static int MAX_ENTRIES = 256;
+
+    /**
+     * Seconds to wait for GitHub
+     */
+    public final static int TIMEOUT = 20;
+
+    private static class Entry {
+        final String body;
+        final String etag;
+        final long fetched;
+
+        Entry(String body, String etag, long fetched) {
+            this.body = body;
+            this.etag = etag;
+            this.fetched = fetched;
+        }
+    }
+
+    private final String baseUrl;
+    private final long ttl;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(TIMEOUT))
+            .build();
+
+    // access ordered, drops the least recently used query when full
+    private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+
+    /**
+     * @param baseUrl e.g. https://api.github.com/
+     */
+    public GitHubClient(String baseUrl) {
+        this(baseUrl, TTL);
+    }
+
+    /**
+     * @param baseUrl e.g. https://api.github.com/
+     * @param ttl     milliseconds an answer is used before it is revalidated
+     */
+    public GitHubClient(String baseUrl, long ttl) {
+        this.baseUrl = baseUrl;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Fetches the JSON for a query like users/USER/repos
+     *
+     * @param query path below the API base URL
+     * @return future with the JSON, an empty string if GitHub did not answer with
+     *         data (e.g. unknown user, no connection or a query that is no valid
+     *         URI)
+     */
+    public CompletableFuture<String> fetch(String query) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(query);
+        }
+        if (entry != null && System.currentTimeMillis() - entry.fetched < ttl) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(entry.body);
+        }
+
+        URI uri;
+        try {
+            uri = URI.create(baseUrl + query);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Invalid GitHub query: " + e.getMessage());
+            return CompletableFuture.completedFuture("");
+        }
+
+        // join a request for the same query that is already on its way
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(query, result);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<String> sent;
+        try {
+            sent = request(query, uri, entry);
+        } catch (RuntimeException e) {
+            // the waiting requests must not join a future that is never completed
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((body, error) -> {
+            inFlight.remove(query, result);
+            if (error != null) {
+                Log.warn("Exception in GitHub request: " + error.getMessage());
+                result.complete("");
+            } else {
+                result.complete(body);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends the request, conditional if we have an old answer with an ETag
+     */
+    private CompletableFuture<String> request(String query, URI uri, Entry stale) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(TIMEOUT))
+                .header("Accept", "application/vnd.github+json");
+        if (stale != null && stale.etag != null)
+            builder.header("If-None-Match", stale.etag);
+
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            long now = System.currentTimeMillis();
+            if (response.statusCode() == 304 && stale != null) {
+                revalidated.incrementAndGet();
+                put(query, new Entry(stale.body, stale.etag, now));
+                return stale.body;
+            }
+            if (response.statusCode() != 200)
+                return "";
+            put(query, new Entry(response.body(), response.headers().firstValue("ETag").orElse(null), now));
+            return response.body();
+        });
+    }
+
+    private void put(String query, Entry entry) {
+        synchronized (cache) {
+            cache.put(query, entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getRevalidated() {
+        return revalidated.get();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+Local stand-in for api.github.com, so the /github endpoint can be tried and
+load tested without network access or GitHub's rate limit.
+
+Every path answers with the same small list of repos after a configurable
+delay. The answer has an ETag and a request with a matching If-None-Match gets
+a 304, like the real API.
+
+Run through
+
+gradle GitHubStub --args '9001 50'
+
+and start the fun web server against it:
+
+gradle FunWebServer -Pgithub.api=http://localhost:9001/
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpServer;
+
+class GitHubStub {
+    private final static byte[] BODY = ("[{\"name\":\"repo\",\"id\":1,\"owner\":{\"login\":\"stub\"}},"
+            + "{\"name\":\"other\",\"id\":2,\"owner\":{\"login\":\"stub\"}}]").getBytes();
+    private final static String ETAG = "\"stub-" + Integer.toHexString(java.util.Arrays.hashCode(BODY)) + "\"";
+
+    private final HttpServer server;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    public static void main(String args[]) throws IOException {
+        int port = 9001;
+        int delay = 50;
+        try {
+            if (args.length > 0)
+                port = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                delay = Integer.parseInt(args[1]);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Expected arguments: [port(int)] [delay ms(int)]");
+            System.exit(1);
+        }
+        GitHubStub stub = new GitHubStub(port, delay);
+        System.out.println("GitHub stub on " + stub.getUrl());
+    }
+
+    /**
+     * Starts the stub. The answers are sent from a scheduler so a slow upstream
+     * does not need a thread per waiting request.
+     *
+     * @param port  to listen on, 0 for any free port
+     * @param delay milliseconds before every answer
+     */
+    public GitHubStub(int port, int delay) throws IOException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "github-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", port), WebServer.BACKLOG);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            scheduler.schedule(() -> {
+                try {
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                    if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        notModified.incrementAndGet();
+                        exchange.sendResponseHeaders(304, -1);
+                    } else {
+                        exchange.getResponseHeaders().add("Content-Type", "application/json");
+                        exchange.sendResponseHeaders(200, BODY.length);
+                        exchange.getResponseBody().write(BODY);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    exchange.close();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        });
+        server.start();
+    }
+
+    /**
+     * @return base URL to use as github.api
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return number of requests that reached the stub
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of requests answered with 304
+     */
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,16 @@
+package funHttpServer;
+
+import java.io.*;
+
+/**
+ * Creates the response for the requests of one endpoint, registered with the
+ * Router
+ */
+interface Handler {
+    /**
+     * @param request parsed request, its path matched the handler's route
+     * @return the response, encoded by the caller
+     * @throws IOException answered with a 500
+     */
+    Response handle(Request request) throws IOException;
+}
@@ -0,0 +1,396 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541). Headers are sent as
+ * indexes into a static table of common headers and a dynamic table of the
+ * headers of earlier messages on the same connection, so e.g. a repeated
+ * Content-Type costs one byte. Strings may be Huffman coded.
+ *
+ * The Decoder understands everything a client may send. The Encoder indexes the
+ * response headers that repeat (content-type, vary, ...) and sends the others
+ * as literals; it does not Huffman code. Both keep state for the whole
+ * connection, header blocks have to be encoded and decoded in the order they go
+ * over the wire.
+ */
+class Hpack {
+    /**
+     * Size of the dynamic tables (SETTINGS_HEADER_TABLE_SIZE) both sides start
+     * with
+     */
+    public final static int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * Appendix A of RFC 7541, entry i is at index i - 1
+     */
+    private final static String[][] STATIC_TABLE = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+            { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+            { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+            { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+            { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+            { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+            { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+            { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+            { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+            { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+    /**
+     * Index of the first static entry with a name, and of name and value
+     */
+    private final static Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private final static Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    /**
+     * Length of the Huffman code of every byte value and of EOS (256), Appendix B
+     * of RFC 7541. The code is canonical: the codes follow from the lengths
+     * (shorter codes first, equal lengths in symbol order).
+     */
+    private final static int[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30 };
+
+    private final static int MAX_CODE_LENGTH = 30;
+    private final static int EOS = 256;
+
+    // canonical decoding: per length the first code, the number of codes and
+    // where their symbols start in HUFFMAN_SYMBOLS
+    private final static int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private final static int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private final static int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private final static int[] HUFFMAN_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+
+    static {
+        for (int length : HUFFMAN_LENGTHS)
+            CODE_COUNT[length]++;
+        int code = 0;
+        int symbol = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = symbol;
+            code = (code + CODE_COUNT[length]) << 1;
+            symbol += CODE_COUNT[length];
+        }
+        int[] next = Arrays.copyOf(FIRST_SYMBOL, FIRST_SYMBOL.length);
+        for (int s = 0; s < HUFFMAN_LENGTHS.length; s++)
+            HUFFMAN_SYMBOLS[next[HUFFMAN_LENGTHS[s]]++] = s;
+    }
+
+    /**
+     * Headers that differ from response to response, they are not worth a slot
+     * in the dynamic table
+     */
+    private final static Set<String> NOT_INDEXED = Set.of("content-length", "date", "etag", "last-modified",
+            "retry-after", "location", "content-range", "set-cookie");
+
+    /**
+     * The dynamic table, newest entry first
+     */
+    private static class Table {
+        final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        int size = 0;
+        int maxSize = DEFAULT_TABLE_SIZE;
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            if (entrySize > maxSize) {
+                clear(); // an entry larger than the table empties it
+                return;
+            }
+            entries.addFirst(new String[] { name, value });
+            size += entrySize;
+            evict();
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        String[] get(int index) throws IOException {
+            if (index < 1)
+                throw new IOException("HPACK: index 0");
+            if (index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (dynamic >= entries.size())
+                throw new IOException("HPACK: index " + index + " out of range");
+            Iterator<String[]> it = entries.iterator();
+            for (int i = 0; i < dynamic; i++)
+                it.next();
+            return it.next();
+        }
+
+        private void evict() {
+            while (size > maxSize)
+                size -= entrySize(entries.peekLast()[0], entries.removeLast()[1]);
+        }
+
+        private void clear() {
+            entries.clear();
+            size = 0;
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    /**
+     * Turns header blocks into name/value pairs
+     */
+    static class Decoder {
+        private final Table table = new Table();
+        private final int maxTableSize;
+
+        /**
+         * @param maxTableSize largest dynamic table the encoder may use (our
+         *                     SETTINGS_HEADER_TABLE_SIZE)
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.resize(maxTableSize);
+        }
+
+        /**
+         * @return the headers in the order they were sent, each as { name, value }
+         * @throws IOException if the block is malformed (a COMPRESSION_ERROR)
+         */
+        List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+            List<String[]> headers = new ArrayList<>();
+            int[] pos = { offset };
+            int end = offset + length;
+            boolean first = true;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // indexed header field
+                    String[] field = table.get(readInt(block, pos, end, 7));
+                    headers.add(field);
+                } else if ((b & 0xc0) == 0x40) {
+                    // literal with incremental indexing
+                    String[] field = readLiteral(block, pos, end, 6);
+                    table.add(field[0], field[1]);
+                    headers.add(field);
+                } else if ((b & 0xe0) == 0x20) {
+                    // dynamic table size update, only at the start of a block
+                    if (!first)
+                        throw new IOException("HPACK: table size update after a header");
+                    int size = readInt(block, pos, end, 5);
+                    if (size > maxTableSize)
+                        throw new IOException("HPACK: table size " + size + " over the limit");
+                    table.resize(size);
+                    continue;
+                } else {
+                    // literal without indexing (0000) or never indexed (0001)
+                    headers.add(readLiteral(block, pos, end, 4));
+                }
+                first = false;
+            }
+            return headers;
+        }
+
+        /**
+         * @return size of the dynamic table as defined in RFC 7541 4.1
+         */
+        int getTableSize() {
+            return table.size;
+        }
+
+        private String[] readLiteral(byte[] block, int[] pos, int end, int prefix) throws IOException {
+            int index = readInt(block, pos, end, prefix);
+            String name = index == 0 ? readString(block, pos, end) : table.get(index)[0];
+            return new String[] { name, readString(block, pos, end) };
+        }
+    }
+
+    /**
+     * Turns response headers into header blocks
+     */
+    static class Encoder {
+        private final Table table = new Table();
+        // size the decoder allows, set by its SETTINGS_HEADER_TABLE_SIZE
+        private int allowedSize = DEFAULT_TABLE_SIZE;
+        private boolean sizeChanged = false;
+
+        /**
+         * The peer changed SETTINGS_HEADER_TABLE_SIZE, we never use more than
+         * DEFAULT_TABLE_SIZE
+         */
+        void setMaxTableSize(int size) {
+            allowedSize = Math.min(size, DEFAULT_TABLE_SIZE);
+            sizeChanged = true;
+        }
+
+        /**
+         * @param headers names in lower case, pseudo headers first
+         */
+        byte[] encode(Map<String, String> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            if (sizeChanged) {
+                table.resize(allowedSize);
+                writeInt(out, 0x20, 5, allowedSize);
+                sizeChanged = false;
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                String name = header.getKey();
+                String value = header.getValue();
+                Integer index = STATIC_FIELDS.get(name + '\0' + value);
+                if (index == null)
+                    index = dynamicIndex(name, value);
+                if (index != null) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                Integer nameIndex = STATIC_NAMES.get(name);
+                if (NOT_INDEXED.contains(name) || table.maxSize == 0) {
+                    writeInt(out, 0x00, 4, nameIndex != null ? nameIndex : 0);
+                } else {
+                    writeInt(out, 0x40, 6, nameIndex != null ? nameIndex : 0);
+                    table.add(name, value);
+                }
+                if (nameIndex == null)
+                    writeString(out, name);
+                writeString(out, value);
+            }
+            return out.toByteArray();
+        }
+
+        private Integer dynamicIndex(String name, String value) {
+            int index = STATIC_TABLE.length + 1;
+            for (String[] entry : table.entries) {
+                if (entry[0].equals(name) && entry[1].equals(value))
+                    return index;
+                index++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads an integer with an N bit prefix (RFC 7541 5.1)
+     */
+    static int readInt(byte[] block, int[] pos, int end, int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = block[pos[0]++] & mask;
+        if (value < mask)
+            return value;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= end)
+                throw new IOException("HPACK: integer cut off");
+            int b = block[pos[0]++] & 0xff;
+            if (shift > 21)
+                throw new IOException("HPACK: integer too large");
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            shift += 7;
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int pattern, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(byte[] block, int[] pos, int end) throws IOException {
+        if (pos[0] >= end)
+            throw new IOException("HPACK: string cut off");
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, end, 7);
+        if (length > end - pos[0])
+            throw new IOException("HPACK: string longer than the block");
+        int start = pos[0];
+        pos[0] += length;
+        if (huffman)
+            return huffmanDecode(block, start, length);
+        return new String(block, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes a Huffman coded string bit by bit with the canonical code tables.
+     * The last byte is padded with the start of EOS (all ones).
+     */
+    static String huffmanDecode(byte[] data, int offset, int length) throws IOException {
+        StringBuilder text = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((b >>> bit) & 1);
+                codeLength++;
+                int n = code - FIRST_CODE[codeLength];
+                if (n >= 0 && n < CODE_COUNT[codeLength]) {
+                    int symbol = HUFFMAN_SYMBOLS[FIRST_SYMBOL[codeLength] + n];
+                    if (symbol == EOS)
+                        throw new IOException("HPACK: EOS in a string");
+                    text.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new IOException("HPACK: invalid Huffman code");
+                }
+            }
+        }
+        // padding: shorter than a byte and only ones
+        if (codeLength > 7 || code != (1 << codeLength) - 1)
+            throw new IOException("HPACK: invalid Huffman padding");
+        return text.toString();
+    }
+}
@@ -0,0 +1,778 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One HTTP/2 connection over cleartext (h2c, RFC 9113), used by the blocking
+ * engines. A client either starts with the HTTP/2 preface right away (prior
+ * knowledge) or asks for an upgrade in an HTTP/1.1 request (Upgrade: h2c). The
+ * connection then carries many requests at the same time as streams, so a
+ * browser loading a page and its images needs a single connection.
+ *
+ * The thread that accepted the connection reads the frames. Every request
+ * (HEADERS) is turned into a Request and answered by the same route handlers as
+ * HTTP/1 on a thread of its own; its response goes out as HEADERS and DATA
+ * frames. Frames of different streams are interleaved, a lock keeps each frame
+ * (and each header block) in one piece. DATA is flow controlled: a stream only
+ * sends as much as the client's windows allow and waits for WINDOW_UPDATE
+ * otherwise, so one large response cannot flood a slow client.
+ *
+ * The server does not push and does not read request bodies (it only answers
+ * GET), received DATA is acknowledged right away.
+ */
+class Http2Connection {
+    /**
+     * What a client sends first
+     */
+    final static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Streams one client may have open at the same time, more are refused
+     */
+    public final static int MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * Largest frame we send and accept (the smallest maximum a peer may set)
+     */
+    public final static int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * Flow control window both sides start with
+     */
+    public final static int DEFAULT_WINDOW = 65535;
+
+    /**
+     * Largest header block (HEADERS and CONTINUATION) we accept
+     */
+    private final static int MAX_HEADER_BLOCK = 4 * Request.MAX_HEADER;
+
+    // frame types
+    private final static int DATA = 0x0;
+    private final static int HEADERS = 0x1;
+    private final static int PRIORITY = 0x2;
+    private final static int RST_STREAM = 0x3;
+    private final static int SETTINGS = 0x4;
+    private final static int PUSH_PROMISE = 0x5;
+    private final static int PING = 0x6;
+    private final static int GOAWAY = 0x7;
+    private final static int WINDOW_UPDATE = 0x8;
+    private final static int CONTINUATION = 0x9;
+
+    // flags
+    private final static int END_STREAM = 0x1;
+    private final static int ACK = 0x1;
+    private final static int END_HEADERS = 0x4;
+    private final static int PADDED = 0x8;
+    private final static int PRIORITY_FLAG = 0x20;
+
+    // settings
+    private final static int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private final static int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private final static int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    // error codes
+    private final static int NO_ERROR = 0x0;
+    private final static int PROTOCOL_ERROR = 0x1;
+    private final static int INTERNAL_ERROR = 0x2;
+    private final static int FLOW_CONTROL_ERROR = 0x3;
+    private final static int FRAME_SIZE_ERROR = 0x6;
+    private final static int REFUSED_STREAM = 0x7;
+    private final static int COMPRESSION_ERROR = 0x9;
+    private final static int ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * Answer to a request with Upgrade: h2c, HTTP/2 starts right after it
+     */
+    private final static byte[] HTTP11_UPGRADE = ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Runs the streams of all connections, a (virtual) thread per stream
+     */
+    private final static ExecutorService STREAMS = WebServer.newVirtualThreadExecutor();
+
+    /**
+     * An error that ends the whole connection with a GOAWAY
+     */
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private final WebServer server;
+    private final InetAddress client;
+    private final DataInputStream in;
+    // frames are written while holding the lock on out
+    private final OutputStream out;
+    private final byte[] frameHeader = new byte[9];
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    // only used while holding the lock on out, header blocks go out in encoding order
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private int lastStreamId = 0;
+
+    // guarded by this
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private boolean closed = false;
+
+    /**
+     * @param server   answers the requests
+     * @param sock     the client's socket, its timeout ends idle connections
+     * @param in       stream of the socket
+     * @param out      buffered stream of the socket
+     * @param buffered bytes that were read from the socket already, in read mode
+     */
+    Http2Connection(WebServer server, Socket sock, InputStream in, OutputStream out, ByteBuffer buffered) {
+        this.server = server;
+        this.client = sock.getInetAddress();
+        byte[] rest = new byte[buffered.remaining()];
+        buffered.get(rest);
+        this.in = new DataInputStream(new BufferedInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(rest), new CountingInputStream(in)), 16 * 1024));
+        this.out = out;
+    }
+
+    /**
+     * Checks if the bytes at the start of a connection are the HTTP/2 preface.
+     * Only its first line is checked, an HTTP/1 request never looks like it.
+     *
+     * @param buffer bytes read so far, in read mode
+     */
+    static boolean isPreface(ByteBuffer buffer) {
+        int line = "PRI * HTTP/2.0\r\n".length();
+        if (buffer.remaining() < line)
+            return false;
+        for (int i = 0; i < line; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if an HTTP/1.1 request asks to switch to HTTP/2
+     */
+    static boolean isUpgrade(Request request) throws IOException {
+        return request.isHttp11() && request.hasHeader("upgrade", "h2c") && request.getHeader("http2-settings") != null
+                && request.getContentLength() == 0;
+    }
+
+    /**
+     * Serves a connection that started with the preface
+     */
+    void serve() throws IOException {
+        serve(null);
+    }
+
+    /**
+     * Switches the connection to HTTP/2 and answers the request that asked for
+     * it as stream 1, then serves the connection
+     *
+     * @param upgrade the request with Upgrade: h2c, it must not point into a
+     *                buffer that is reused
+     */
+    void upgrade(Request upgrade) throws IOException {
+        out.write(HTTP11_UPGRADE);
+        server.metrics.written(HTTP11_UPGRADE.length);
+        try {
+            // the client's settings come with the request (base64url)
+            byte[] settings = Base64.getUrlDecoder().decode(upgrade.getHeader("http2-settings").trim());
+            applySettings(settings, 0, settings.length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid HTTP2-Settings");
+        }
+        serve(upgrade);
+    }
+
+    private void serve(Request upgrade) throws IOException {
+        writeSettings();
+        try {
+            readPreface();
+            if (upgrade != null) {
+                // half closed already, the request had no body
+                lastStreamId = 1;
+                start(new Stream(1), upgrade);
+            }
+            readFrames();
+        } catch (ConnectionError e) {
+            Log.debug("HTTP/2 connection error: " + e.getMessage());
+            goAway(e.code);
+        } catch (IOException e) {
+            Log.debug("HTTP/2 connection closed: " + e); // the client went away
+        } finally {
+            finish();
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE))
+            throw new IOException("Invalid HTTP/2 preface");
+    }
+
+    /**
+     * The frame loop, runs until the client closes the connection, sends a
+     * GOAWAY or stays idle for longer than IDLE_TIMEOUT
+     */
+    private void readFrames() throws IOException {
+        while (true) {
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException ste) {
+                if (!streams.isEmpty())
+                    continue; // responses are still being written
+                goAway(NO_ERROR);
+                return;
+            }
+            if (first < 0)
+                return;
+            in.readFully(frameHeader, 1, 8);
+            int length = (first << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            int type = frameHeader[3] & 0xff;
+            int flags = frameHeader[4] & 0xff;
+            int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+            if (length > MAX_FRAME_SIZE)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            switch (type) {
+            case DATA:
+                onData(streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case PRIORITY:
+                break;
+            case RST_STREAM:
+                onReset(streamId);
+                break;
+            case SETTINGS:
+                onSettings(streamId, flags, payload);
+                break;
+            case PING:
+                if (length != 8)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                if ((flags & ACK) == 0) {
+                    synchronized (out) {
+                        writeFrame(PING, ACK, 0, payload, 0, 8);
+                        out.flush();
+                    }
+                }
+                break;
+            case GOAWAY:
+                return;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case PUSH_PROMISE:
+            case CONTINUATION:
+                throw new ConnectionError(PROTOCOL_ERROR, "Unexpected frame type " + type);
+            default:
+                break; // unknown frame types are ignored
+            }
+        }
+    }
+
+    /**
+     * Acknowledges request body bytes right away, we do not read them
+     */
+    private void onData(int streamId, int length) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        if (length == 0)
+            return;
+        synchronized (out) {
+            writeWindowUpdate(0, length);
+            if (streams.containsKey(streamId))
+                writeWindowUpdate(streamId, length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the rest of the header block and starts the stream
+     */
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int start = 0;
+        int end = payload.length;
+        if ((flags & PADDED) != 0) {
+            if (end < 1)
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS too short");
+            end -= payload[0] & 0xff;
+            start++;
+        }
+        if ((flags & PRIORITY_FLAG) != 0)
+            start += 5;
+        if (start > end)
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid HEADERS padding");
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - start);
+        block.write(payload, start, end - start);
+        while ((flags & END_HEADERS) == 0) {
+            // the block goes on in CONTINUATION frames, nothing else may come between
+            in.readFully(frameHeader);
+            int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            if ((frameHeader[3] & 0xff) != CONTINUATION || (readInt(frameHeader, 5) & 0x7fffffff) != streamId)
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+            if (length > MAX_FRAME_SIZE || block.size() + length > MAX_HEADER_BLOCK)
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+            byte[] continuation = new byte[length];
+            in.readFully(continuation);
+            block.write(continuation, 0, length);
+            flags = frameHeader[4] & 0xff;
+        }
+
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(block.toByteArray(), 0, block.size());
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        if (streamId <= lastStreamId)
+            return; // trailers of a request, decoded only to keep the table in sync
+        if (streamId % 2 == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "Stream " + streamId + " opened by the client");
+        lastStreamId = streamId;
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            reset(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        Stream stream = new Stream(streamId);
+        Request request = toRequest(fields);
+        if (request == null) {
+            reset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        start(stream, request);
+    }
+
+    /**
+     * Writes the pseudo headers and headers as an HTTP/1 request head and parses
+     * it, so the handlers see the same Request as for HTTP/1
+     *
+     * @return the request or null if it is malformed
+     */
+    private static Request toRequest(List<String[]> fields) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        StringBuilder headers = new StringBuilder(256);
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0 || name.indexOf(':', 1) >= 0)
+                return null;
+            if (name.equals(":method"))
+                method = value;
+            else if (name.equals(":path"))
+                path = value;
+            else if (name.equals(":authority"))
+                authority = value;
+            else if (!name.startsWith(":"))
+                headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || method.indexOf(' ') >= 0 || path.indexOf(' ') >= 0)
+            return null;
+        if (authority != null)
+            headers.append("host: ").append(authority).append("\r\n");
+        String head = method + " " + path + " HTTP/2.0\r\n" + headers + "\r\n";
+        try {
+            return new RequestParser().parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (IOException e) {
+            return null; // too large or too many headers
+        }
+    }
+
+    /**
+     * Answers the request on a thread of its own
+     */
+    private void start(Stream stream, Request request) throws IOException {
+        streams.put(stream.id, stream);
+        request.setStream(stream);
+        try {
+            STREAMS.execute(() -> {
+                try {
+                    server.respond(request, client, stream);
+                } catch (IOException | RuntimeException e) {
+                    if (!stream.reset && !isClosed())
+                        Log.debug("HTTP/2 stream " + stream.id + " failed: " + e);
+                } finally {
+                    stream.end();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            streams.remove(stream.id);
+            reset(stream.id, REFUSED_STREAM);
+        }
+    }
+
+    private void onReset(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream == null)
+            return;
+        synchronized (this) {
+            stream.reset = true;
+            notifyAll();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        if ((flags & ACK) != 0)
+            return;
+        if (payload.length % 6 != 0)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes");
+        applySettings(payload, 0, payload.length);
+        synchronized (out) {
+            writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Applies the client's settings. Only the ones that change what we send
+     * matter, the frame size we use is always allowed.
+     */
+    private void applySettings(byte[] payload, int offset, int length) throws IOException {
+        for (int i = offset; i + 6 <= offset + length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            if (id == SETTINGS_HEADER_TABLE_SIZE) {
+                synchronized (out) {
+                    encoder.setMaxTableSize(value);
+                }
+            } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value < 0)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window too large");
+                synchronized (this) {
+                    // open streams keep what they used up, RFC 9113 6.9.2
+                    int delta = value - initialWindow;
+                    initialWindow = value;
+                    for (Stream stream : streams.values())
+                        stream.window += delta;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.length + " bytes");
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0 || sendWindow + increment > Integer.MAX_VALUE)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid connection window update");
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null)
+                    stream.window += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits (a while) for the streams that are still being answered, then
+     * releases them
+     */
+    private void finish() {
+        long deadline = System.currentTimeMillis() + WebServer.IDLE_TIMEOUT;
+        synchronized (this) {
+            try {
+                while (!streams.isEmpty() && !closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        break;
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[6];
+        settings[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt(settings, 2, MAX_CONCURRENT_STREAMS);
+        synchronized (out) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            out.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void reset(int streamId, int code) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, code);
+        synchronized (out) {
+            writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+            out.flush();
+        }
+    }
+
+    private void goAway(int code) {
+        byte[] payload = new byte[8];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, code);
+        try {
+            synchronized (out) {
+                writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    /**
+     * Writes one frame, the caller holds the lock on out
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+        out.write(header);
+        out.write(payload, offset, length);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Counts the bytes read from the socket for the metrics
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                server.metrics.read(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                server.metrics.read(n);
+            return n;
+        }
+    }
+
+    /**
+     * The response side of one stream. The body written to it is collected into
+     * frames of MAX_FRAME_SIZE and sent as DATA as far as the flow control
+     * windows allow; closing it ends the stream.
+     */
+    class Stream extends OutputStream {
+        final int id;
+        // bytes we may still send on this stream, guarded by the connection
+        long window;
+        // set when the client cancelled the stream, guarded by the connection
+        volatile boolean reset = false;
+        private final byte[] frame = new byte[MAX_FRAME_SIZE];
+        private int size = 0;
+        private boolean headersSent = false;
+        private boolean ended = false;
+
+        Stream(int id) {
+            this.id = id;
+            synchronized (Http2Connection.this) {
+                this.window = initialWindow;
+            }
+        }
+
+        /**
+         * Sends the response headers
+         *
+         * @param fields    :status first, names in lower case
+         * @param endStream true if there is no body
+         */
+        void writeHeaders(Map<String, String> fields, boolean endStream) throws IOException {
+            if (reset)
+                throw new IOException("Stream reset by the client");
+            synchronized (out) {
+                byte[] block = encoder.encode(fields);
+                int n = Math.min(block.length, MAX_FRAME_SIZE);
+                writeFrame(HEADERS, (endStream ? END_STREAM : 0) | (n == block.length ? END_HEADERS : 0), id, block,
+                        0, n);
+                for (int offset = n; offset < block.length; offset += n) {
+                    n = Math.min(block.length - offset, MAX_FRAME_SIZE);
+                    writeFrame(CONTINUATION, offset + n == block.length ? END_HEADERS : 0, id, block, offset, n);
+                }
+                // also without a body yet, the client may wait for them to open the window
+                out.flush();
+            }
+            headersSent = true;
+            ended = endStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == frame.length)
+                sendData(false);
+            frame[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == frame.length)
+                    sendData(false);
+                int n = Math.min(len, frame.length - size);
+                System.arraycopy(b, off, frame, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Sends what was written so far
+         */
+        @Override
+        public void flush() throws IOException {
+            if (size > 0)
+                sendData(false);
+        }
+
+        /**
+         * Sends the rest of the body and ends the stream
+         */
+        @Override
+        public void close() throws IOException {
+            if (ended)
+                return;
+            ended = true;
+            sendData(true);
+        }
+
+        /**
+         * Called when the handler is done: a stream that was not ended properly
+         * is reset, so the client does not wait for it
+         */
+        void end() {
+            streams.remove(id);
+            synchronized (Http2Connection.this) {
+                Http2Connection.this.notifyAll(); // finish() may wait for the last stream
+            }
+            if (ended || reset || isClosed())
+                return;
+            ended = true;
+            try {
+                reset(id, headersSent ? INTERNAL_ERROR : REFUSED_STREAM);
+            } catch (IOException e) {
+                // the connection is gone
+            }
+        }
+
+        private void sendData(boolean endStream) throws IOException {
+            int offset = 0;
+            do {
+                int n = size - offset > 0 ? reserve(size - offset) : 0;
+                synchronized (out) {
+                    writeFrame(DATA, endStream && offset + n == size ? END_STREAM : 0, id, frame, offset, n);
+                    out.flush();
+                }
+                offset += n;
+            } while (offset < size);
+            size = 0;
+        }
+
+        /**
+         * Takes up to wanted bytes from the stream's and the connection's window,
+         * waits for a WINDOW_UPDATE if either is used up
+         *
+         * @return bytes that may be sent, at least 1
+         * @throws IOException if the stream was reset, the connection closed or
+         *                     the client did not open the window for IDLE_TIMEOUT
+         */
+        private int reserve(int wanted) throws IOException {
+            long deadline = System.currentTimeMillis() + WebServer.IDLE_TIMEOUT;
+            synchronized (Http2Connection.this) {
+                while (true) {
+                    if (reset)
+                        throw new IOException("Stream reset by the client");
+                    if (closed)
+                        throw new IOException("Connection closed");
+                    long n = Math.min(wanted, Math.min(sendWindow, window));
+                    if (n > 0) {
+                        sendWindow -= n;
+                        window -= n;
+                        return (int) n;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new IOException("Client did not open the flow control window");
+                    try {
+                        Http2Connection.this.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+Load generator for the funHttpServer.WebServer: throughput and tail latency
+per route for a mix of requests.
+
+Starts a stubbed GitHub API and the server (any engine) in this JVM, then sends
+requests for the given time and prints p50/p99/p99.9 per route and overall.
+
+closed loop - every client sends its next request as soon as it has the answer
+              to the last one. Shows the highest throughput, but a slow answer
+              also delays the requests behind it, so the latencies look better
+              than they are.
+open loop   - requests are due at a constant rate, whether the server keeps up
+              or not. The latency counts from the time a request was due, so
+              waiting for a free connection is part of it (no coordinated
+              omission). Shows the latency at a given load.
+
+Run through
+
+gradle LoadGenerator
+
+or with arguments as name=value, e.g.
+
+gradle LoadGenerator --args 'mode=open rate=2000 concurrency=64 engine=nio keepAlive=false'
+
+mode=closed|open        (closed)
+rate=REQUESTS_PER_SEC   open loop only (1000)
+concurrency=N           clients (closed) or connections (open) (32)
+seconds=N               measured time (10), after warmup=N seconds (2)
+keepAlive=true|false    reuse connections or open one per request (true)
+gzip=true|false         send Accept-Encoding: gzip (false)
+engine=blocking|thread|virtual|nio, workers=N, queue=N for the server (blocking 16 64)
+delay=MS                delay of the GitHub stub (50)
+port=N                  use a server that is running already instead
+mix=WEIGHT:PATH,...     routes and how often they are asked for, {n} in a
+                        path becomes a counter (e.g. to miss the /github cache)
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+class LoadGenerator {
+    private final static String DEFAULT_MIX = "40:/,20:/random,20:/json,10:/multiply?num1=3&num2=4,"
+            + "10:/github?query=users/stub{n}/repos";
+
+    /**
+     * A path of the mix and what was measured for it
+     */
+    static class Route {
+        final String path;
+        final int weight;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        // all routes together, shared by the routes of a mix
+        final LatencyHistogram all;
+
+        Route(String path, int weight, LatencyHistogram all) {
+            this.path = path;
+            this.weight = weight;
+            this.all = all;
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.out.println("Expected arguments as name=value, see LoadGenerator.java");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String mode = options.getOrDefault("mode", "closed");
+        String engine = options.getOrDefault("engine", "blocking");
+        boolean keepAlive = Boolean.parseBoolean(options.getOrDefault("keepAlive", "true"));
+        boolean gzip = Boolean.parseBoolean(options.getOrDefault("gzip", "false"));
+        int rate, concurrency, seconds, warmup, workers, queue, delay, port;
+        List<Route> mix;
+        try {
+            rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+            concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+            seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+            warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+            workers = Integer.parseInt(options.getOrDefault("workers", String.valueOf(WebServer.DEFAULT_WORKERS)));
+            queue = Integer.parseInt(options.getOrDefault("queue", String.valueOf(WebServer.DEFAULT_QUEUE)));
+            delay = Integer.parseInt(options.getOrDefault("delay", "50"));
+            port = Integer.parseInt(options.getOrDefault("port", "0"));
+            mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid argument: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            System.out.println("Unknown mode " + mode + ", expected closed or open");
+            System.exit(1);
+        }
+
+        GitHubStub stub = null;
+        Server server = null;
+        if (port == 0) {
+            // the stub has to be known before the WebServer class is loaded
+            stub = new GitHubStub(0, delay);
+            System.setProperty("github.api", stub.getUrl());
+            // all clients come from localhost, the limits per client would stop them
+            System.setProperty("funHttpServer.rateLimit", "false");
+            LoadTest.useTemporaryDirectory();
+            server = WebServer.create(engine, workers, queue);
+            if (server == null) {
+                System.out.println("Unknown engine " + engine + ", expected blocking, thread, virtual or nio");
+                System.exit(1);
+            }
+            port = LoadTest.startServer(server);
+        }
+
+        System.out.println("mode=" + mode + (mode.equals("open") ? " rate=" + rate + "/s" : "") + " concurrency="
+                + concurrency + " keepAlive=" + keepAlive + " gzip=" + gzip
+                + (stub != null ? " engine=" + engine + " workers=" + workers + " queue=" + queue : " port=" + port)
+                + " seconds=" + seconds + " warmup=" + warmup);
+        long elapsed = run(port, mix, mode.equals("open"), rate, concurrency, seconds, warmup, keepAlive, gzip);
+        print(mix, elapsed, mode.equals("open") ? rate : 0);
+        if (server != null)
+            server.stop();
+        if (stub != null)
+            stub.stop();
+        System.exit(0);
+    }
+
+    /**
+     * @param mix e.g. "40:/,10:/json"
+     */
+    static List<Route> parseMix(String mix) {
+        List<Route> routes = new ArrayList<>();
+        LatencyHistogram all = new LatencyHistogram();
+        for (String part : mix.split(",")) {
+            int colon = part.indexOf(':');
+            if (colon <= 0 || !part.startsWith("/", colon + 1))
+                throw new IllegalArgumentException("mix entry " + part + ", expected WEIGHT:/PATH");
+            int weight = Integer.parseInt(part.substring(0, colon).trim());
+            if (weight > 0)
+                routes.add(new Route(part.substring(colon + 1).trim(), weight, all));
+        }
+        if (routes.isEmpty())
+            throw new IllegalArgumentException("mix without routes");
+        return routes;
+    }
+
+    /**
+     * Runs the clients, every one on its own (virtual) thread with its own
+     * connection
+     *
+     * @param open   true for a constant rate, false for a closed loop
+     * @param warmup seconds at the start that are not measured
+     * @return nanoseconds from the end of the warmup until the last answer
+     */
+    static long run(int port, List<Route> mix, boolean open, int rate, int concurrency, int seconds, int warmup,
+            boolean keepAlive, boolean gzip) throws InterruptedException {
+        int totalWeight = mix.stream().mapToInt(r -> r.weight).sum();
+        long start = System.nanoTime() + 100_000_000L; // all clients are ready by then
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long end = measureFrom + seconds * 1_000_000_000L;
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        // the next request that is due (open loop)
+        AtomicLong next = new AtomicLong();
+        AtomicLong counter = new AtomicLong();
+        LatencyHistogram all = mix.get(0).all;
+        CountDownLatch done = new CountDownLatch(concurrency);
+
+        ExecutorService clients = WebServer.newVirtualThreadExecutor();
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(() -> {
+                Client client = new Client(port, keepAlive, gzip);
+                try {
+                    LockSupport.parkNanos(start - System.nanoTime());
+                    while (true) {
+                        long due;
+                        if (open) {
+                            due = start + next.getAndIncrement() * interval;
+                            long wait = due - System.nanoTime();
+                            if (wait > 0)
+                                LockSupport.parkNanos(wait);
+                        } else {
+                            due = System.nanoTime();
+                        }
+                        if (due >= end)
+                            break;
+
+                        Route route = pick(mix, totalWeight);
+                        String path = route.path.replace("{n}", String.valueOf(counter.incrementAndGet()));
+                        int status;
+                        try {
+                            status = client.get(path);
+                        } catch (IOException e) {
+                            status = -1;
+                            client.close();
+                        }
+                        if (due < measureFrom)
+                            continue;
+                        long latency = System.nanoTime() - due;
+                        route.latency.record(latency);
+                        all.record(latency);
+                        if (status < 0)
+                            route.errors.increment();
+                        else if (status < 400)
+                            route.ok.increment();
+                        else
+                            route.failed.increment();
+                    }
+                } finally {
+                    client.close();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        clients.shutdown();
+        // late requests of the open loop are answered after the end
+        return System.nanoTime() - measureFrom;
+    }
+
+    private static Route pick(List<Route> mix, int totalWeight) {
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Route route : mix) {
+            r -= route.weight;
+            if (r < 0)
+                return route;
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private static void print(List<Route> mix, long nanos, int target) {
+        double seconds = nanos / 1e9;
+        LatencyHistogram all = mix.get(0).all;
+        long ok = 0, failed = 0, errors = 0;
+        System.out.println("route\trequests\treq/s\tp50 ms\tp99 ms\tp99.9 ms\t4xx/5xx\terrors");
+        for (Route route : mix) {
+            long count = route.latency.getCount();
+            System.out.printf("%s\t%d\t%.0f\t%s\t%s\t%s\t%d\t%d%n", route.path, count, count / seconds,
+                    millis(route.latency, 50), millis(route.latency, 99), millis(route.latency, 99.9),
+                    route.failed.sum(), route.errors.sum());
+            ok += route.ok.sum();
+            failed += route.failed.sum();
+            errors += route.errors.sum();
+        }
+        long count = all.getCount();
+        System.out.printf("all\t%d\t%.0f\t%s\t%s\t%s\t%d\t%d%n", count, count / seconds, millis(all, 50),
+                millis(all, 99), millis(all, 99.9), failed, errors);
+        if (target > 0 && count < target * seconds * 0.95)
+            System.out.printf("Only %.0f of %d requests/s were answered, the server or the connections (concurrency) can not keep up%n",
+                    count / seconds, target);
+        if (ok == 0)
+            System.out.println("No request succeeded");
+    }
+
+    private static String millis(LatencyHistogram latency, double percentile) {
+        return String.format("%.2f", latency.getValueAtPercentile(percentile) / 1000.0);
+    }
+
+    /**
+     * One connection of a client. With keep-alive it is reused as long as the
+     * server keeps it open, otherwise every request opens a new one.
+     */
+    static class Client {
+        private final int port;
+        private final boolean keepAlive;
+        private final byte[] headers;
+        private Socket sock = null;
+        private InputStream in;
+        private OutputStream out;
+
+        Client(int port, boolean keepAlive, boolean gzip) {
+            this.port = port;
+            this.keepAlive = keepAlive;
+            this.headers = ("Host: localhost\r\n" + (gzip ? "Accept-Encoding: gzip\r\n" : "")
+                    + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Sends a GET request and reads the whole response
+         *
+         * @return the status code
+         */
+        int get(String path) throws IOException {
+            if (sock == null) {
+                sock = new Socket("localhost", port);
+                sock.setTcpNoDelay(true);
+                in = new BufferedInputStream(sock.getInputStream(), 16 * 1024);
+                out = new BufferedOutputStream(sock.getOutputStream());
+            }
+            out.write(("GET " + path + " HTTP/1.1\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(headers);
+            out.flush();
+
+            String statusLine = readLine();
+            if (statusLine == null)
+                throw new EOFException("Connection closed");
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            long length = -1;
+            boolean chunked = false;
+            boolean close = !keepAlive;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                String header = line.toLowerCase();
+                if (header.startsWith("content-length:"))
+                    length = Long.parseLong(header.substring(15).trim());
+                else if (header.startsWith("transfer-encoding:") && header.contains("chunked"))
+                    chunked = true;
+                else if (header.startsWith("connection:") && header.contains("close"))
+                    close = true;
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+                    skip(size);
+                    readLine();
+                }
+                while ((line = readLine()) != null && !line.isEmpty())
+                    ; // trailers
+            } else if (length >= 0) {
+                skip(length);
+            } else {
+                close = true; // the body ends with the connection
+                while (in.read() >= 0)
+                    ;
+            }
+            if (close)
+                close();
+            return status;
+        }
+
+        void close() {
+            if (sock == null)
+                return;
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            sock = null;
+        }
+
+        private void skip(long n) throws IOException {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() < 0)
+                        throw new EOFException("Body cut off");
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return c < 0 && line.length() == 0 ? null : line.toString();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+Load test for the funHttpServer.WebServer worker pool.
+
+Starts a local stub of the GitHub API that answers after a fixed delay, then
+starts one WebServer per worker count and lets a number of clients hammer the
+/github endpoint for a few seconds. With a single worker every request waits
+for the one before it, with more workers the throughput should grow roughly
+linearly until the clients are saturated. Every server is stopped before the
+next one starts, and all of them use a copy of www/ in a temporary directory.
+
+Run through
+
+gradle LoadTest
+
+or with arguments: [clients(int)] [seconds(int)] [delay ms(int)]
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+class LoadTest {
+    private final static int[] WORKER_COUNTS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String args[]) throws Exception {
+        int clients = 32;
+        int seconds = 3;
+        int delay = 50;
+        try {
+            if (args.length > 0)
+                clients = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                seconds = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                delay = Integer.parseInt(args[2]);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Expected arguments: [clients(int)] [seconds(int)] [delay ms(int)]");
+            System.exit(1);
+        }
+
+        // the stub has to be known before the WebServer class is loaded
+        GitHubStub stub = new GitHubStub(0, delay);
+        System.setProperty("github.api", stub.getUrl());
+        // all clients come from localhost, the limits per client would stop them
+        System.setProperty("funHttpServer.rateLimit", "false");
+        useTemporaryDirectory();
+
+        System.out.println("clients=" + clients + " seconds=" + seconds + " upstream delay=" + delay + "ms");
+        System.out.println("workers\trequests\treq/s\t503s\terrors");
+        int queue = clients;
+        for (int workers : WORKER_COUNTS) {
+            WebServer server = new WebServer(workers, queue);
+            int port = startServer(server);
+            Result result = run(port, clients, seconds);
+            server.stop();
+            System.out.printf("%d\t%d\t\t%.1f\t%d\t%d%n", workers, result.ok, result.ok / (double) seconds,
+                    result.rejected, result.errors);
+        }
+        stub.stop();
+        System.exit(0);
+    }
+
+    /**
+     * Points the servers of a benchmark at a copy of www/ in a temporary
+     * directory, with the access and chat logs next to it, so they neither write
+     * into the repository nor see what an earlier run left there. Has to be called
+     * before the WebServer class is loaded. The directory is deleted when the JVM
+     * exits.
+     */
+    static void useTemporaryDirectory() throws IOException {
+        Path dir = Files.createTempDirectory("funHttpServer");
+        Path www = Files.createDirectory(dir.resolve("www"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(new File("www").toPath())) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file))
+                    Files.copy(file, www.resolve(file.getFileName()));
+            }
+        }
+        System.setProperty("funHttpServer.www", www.toString());
+        System.setProperty("funHttpServer.accessLog", dir.resolve("access.log").toString());
+        System.setProperty("funHttpServer.chatLog", dir.resolve("chat.html").toString());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir.toFile())));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Starts the server in the background on a free port and waits until it
+     * accepts connections. The caller stops it.
+     *
+     * @return the port
+     */
+    static int startServer(Server server) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread thread = new Thread(() -> server.serve(port));
+        thread.setDaemon(true);
+        thread.start();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("server did not start on port " + port);
+    }
+
+    private final static AtomicLong queries = new AtomicLong();
+
+    /**
+     * The /github answers are cached by query, so every request asks for a
+     * different user to make it go to the (slow) upstream
+     */
+    static String uncachedQuery() {
+        return "/github?query=users/stub" + queries.incrementAndGet() + "/repos";
+    }
+
+    static class Result {
+        long ok;
+        long rejected;
+        long errors;
+    }
+
+    /**
+     * Runs the clients in a closed loop against the /github endpoint
+     */
+    static Result run(int port, int clients, int seconds) throws InterruptedException {
+        AtomicLong ok = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        String status = get(port, uncachedQuery());
+                        if (status.contains(" 200 "))
+                            ok.incrementAndGet();
+                        else if (status.contains(" 503 "))
+                            rejected.incrementAndGet();
+                        else
+                            errors.incrementAndGet();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        Result result = new Result();
+        result.ok = ok.get();
+        result.rejected = rejected.get();
+        result.errors = errors.get();
+        return result;
+    }
+
+    /**
+     * Sends one GET request, reads the whole response and returns the status
+     * line
+     */
+    static String get(int port, String path) throws IOException {
+        try (Socket sock = new Socket("localhost", port)) {
+            OutputStream out = sock.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes());
+            out.flush();
+            InputStream in = sock.getInputStream();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte buffer[] = new byte[512];
+            int numRead;
+            while ((numRead = in.read(buffer)) > 0)
+                data.write(buffer, 0, numRead);
+            String response = data.toString();
+            int eol = response.indexOf('\n');
+            return eol < 0 ? response : response.substring(0, eol);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package funHttpServer;
+
+/**
+ * Console output of the fun web server, filtered by a level that is set at
+ * startup with -DfunHttpServer.log=debug|info|warn|off (default info).
+ * Printing every received header line (debug) costs more than parsing the
+ * request, so it is only done when asked for.
+ */
+class Log {
+    enum Level {
+        DEBUG, INFO, WARN, OFF
+    }
+
+    final static Level LEVEL = level();
+
+    private static Level level() {
+        String name = System.getProperty("funHttpServer.log", "info");
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown log level " + name + ", expected debug, info, warn or off");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Check this before building an expensive message
+     */
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    static void debug(String message) {
+        if (isEnabled(Level.DEBUG))
+            System.out.println(message);
+    }
+
+    static void info(String message) {
+        if (isEnabled(Level.INFO))
+            System.out.println(message);
+    }
+
+    static void warn(String message) {
+        if (isEnabled(Level.WARN))
+            System.out.println(message);
+    }
+}
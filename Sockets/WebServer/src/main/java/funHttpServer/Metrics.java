@@ -0,0 +1,189 @@
+package funHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of the fun web server, rendered in the Prometheus text format by
+ * /metrics. Per route there is a latency histogram and a request count per
+ * status; for the whole server the bytes read and written, the open
+ * connections and the requests in flight. Values that are counted elsewhere
+ * (queue length, cache hits) are registered as suppliers and read when the
+ * page is rendered.
+ *
+ * Everything is recorded with LongAdders and atomic arrays, so the workers do
+ * not contend on a lock for it.
+ */
+class Metrics {
+    /**
+     * Percentiles reported for every route
+     */
+    private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static class Route {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    }
+
+    private static class Supplied {
+        final String name;
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Supplied(String name, String type, String help, LongSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Supplied> supplied = new ArrayList<>();
+
+    /**
+     * Records a request that was answered
+     *
+     * @param route  route the request matched (e.g. /multiply), null if none did
+     * @param status status code of the response
+     * @param nanos  time from the complete request to the written response
+     */
+    public void record(String route, int status, long nanos) {
+        Route metrics = routes.computeIfAbsent(route != null ? route : "none", r -> new Route());
+        metrics.latency.record(nanos);
+        metrics.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records a request or connection that was answered with a 503 because the
+     * server was busy
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public void read(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void written(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Adds a value that only goes up and is counted elsewhere
+     *
+     * @param name Prometheus name, ending in _total
+     */
+    public synchronized Metrics counter(String name, String help, LongSupplier value) {
+        supplied.add(new Supplied(name, "counter", help, value));
+        return this;
+    }
+
+    /**
+     * Adds a value that goes up and down and is counted elsewhere
+     */
+    public synchronized Metrics gauge(String name, String help, LongSupplier value) {
+        supplied.add(new Supplied(name, "gauge", help, value));
+        return this;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format (version
+     *         0.0.4)
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        // sorted, so the page does not jump around between scrapes
+        Map<String, Route> sorted = new TreeMap<>(routes);
+
+        header(out, "funhttp_requests_total", "counter", "Requests answered, by route and status");
+        for (Map.Entry<String, Route> route : sorted.entrySet()) {
+            for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(route.getValue().statuses).entrySet()) {
+                out.append("funhttp_requests_total{route=\"").append(escape(route.getKey()))
+                        .append("\",status=\"").append(status.getKey()).append("\"} ")
+                        .append(status.getValue().sum()).append('\n');
+            }
+        }
+
+        header(out, "funhttp_request_duration_seconds", "summary",
+                "Time from the complete request to the written response, by route");
+        for (Map.Entry<String, Route> route : sorted.entrySet()) {
+            LatencyHistogram latency = route.getValue().latency;
+            String label = escape(route.getKey());
+            for (double quantile : QUANTILES) {
+                out.append("funhttp_request_duration_seconds{route=\"").append(label)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(latency.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append("funhttp_request_duration_seconds_sum{route=\"").append(label).append("\"} ")
+                    .append(seconds(latency.getSumMicros())).append('\n');
+            out.append("funhttp_request_duration_seconds_count{route=\"").append(label).append("\"} ")
+                    .append(latency.getCount()).append('\n');
+        }
+
+        value(out, "funhttp_rejected_total", "counter", "Requests and connections answered with 503 (busy)",
+                rejected.sum());
+        value(out, "funhttp_received_bytes_total", "counter", "Bytes read from clients", bytesIn.sum());
+        value(out, "funhttp_sent_bytes_total", "counter", "Bytes written to clients", bytesOut.sum());
+        value(out, "funhttp_connections_total", "counter", "Connections accepted", connections.sum());
+        value(out, "funhttp_active_connections", "gauge", "Open client connections", activeConnections.get());
+        value(out, "funhttp_requests_in_flight", "gauge", "Requests being answered", inFlight.get());
+
+        List<Supplied> values;
+        synchronized (this) {
+            values = new ArrayList<>(supplied);
+        }
+        for (Supplied s : values)
+            value(out, s.name, s.type, s.help, s.value.getAsLong());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void value(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,625 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop engine for the fun web server. A single thread waits on a
+ * Selector for all connections, so idle keep-alive clients do not cost a
+ * thread each. The request line and headers are parsed incrementally as bytes
+ * arrive, complete requests are handed to the same route handlers as the
+ * blocking server (WebServer.respond). Those handlers may block (files,
+ * GitHub), so they run on a bounded worker pool. The worker writes the response
+ * into pooled direct buffers that the event loop sends as the client takes
+ * them. Only a few buffers may wait per connection, a worker that produces a
+ * large body faster than the client reads it waits for the event loop.
+ *
+ * Subscribers of /chat/stream do not need a worker at all: once the handler
+ * accepted the subscription, the event loop writes the shared event buffers
+ * (ChatBroadcast) to every subscriber whenever a message is published.
+ */
+class NioServer implements Server {
+    /**
+     * Number of filled buffers that may wait to be sent per connection
+     */
+    private final static int QUEUED_BUFFERS = 4;
+
+    /**
+     * Buffers the workers write the responses into
+     */
+    private final static BufferPool OUTPUT_BUFFERS = new BufferPool(16 * 1024, 256, true);
+
+    /**
+     * Events that may wait for a subscriber that does not read, then it is
+     * dropped
+     */
+    private final static int MAX_QUEUED_EVENTS = 64;
+
+    /**
+     * Milliseconds between two sweeps over all connections for idle ones and
+     * heartbeats, the event loop does not walk all keys on every wakeup
+     */
+    private final static long SWEEP_INTERVAL = 1000;
+
+    private final WebServer routes;
+    private final ThreadPoolExecutor pool;
+    private final Selector selector;
+
+    /**
+     * Connections a worker wrote more of the response for, the event loop sends
+     * it
+     */
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections subscribed to the chat events, only touched by the event loop
+     */
+    private final Set<Connection> subscribers = new HashSet<>();
+
+    /**
+     * Set when a chat message was published, the event loop sends it
+     */
+    private volatile boolean published = false;
+
+    /**
+     * When the event loop looks for idle connections next
+     */
+    private long nextSweep = 0;
+
+    /**
+     * Set by stop(), the event loop ends
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * State of one client connection, only touched by the event loop except for
+     * the response stream a worker writes into
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final InetAddress client;
+        // kept in read mode, bytes are only added by read()
+        ByteBuffer in = WebServer.BUFFERS.acquire().flip();
+        final RequestParser parser = new RequestParser();
+        SelectionKey key;
+        ResponseStream response = null;
+        // buffer of the response that is being sent
+        ByteBuffer out = null;
+        boolean busy = false;
+        boolean keepAlive = true;
+        int served = 0;
+        long lastActive = System.currentTimeMillis();
+        // set while the connection is subscribed to the chat events: what still
+        // has to be sent, the request that subscribed and what it was sent
+        ArrayDeque<ByteBuffer> events = null;
+        long lastEventId;
+        Request eventRequest;
+        long eventStart;
+        long eventBytes;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress();
+        }
+    }
+
+    /**
+     * The response of one request. The worker writes into it like into a socket,
+     * every full buffer goes into a small queue the event loop sends from. When
+     * the queue is full the worker waits, when the connection is closed the
+     * worker gets an IOException.
+     */
+    private class ResponseStream extends OutputStream {
+        private final Connection conn;
+        private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUED_BUFFERS);
+        private ByteBuffer current = null;
+        // set by the worker when the response is complete
+        volatile boolean done = false;
+        volatile boolean keepAlive = false;
+        // set by the event loop when the connection is gone
+        volatile boolean aborted = false;
+
+        ResponseStream(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null || !current.hasRemaining())
+                next();
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null || !current.hasRemaining())
+                    next();
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Hands the bytes written so far to the event loop
+         */
+        @Override
+        public void flush() throws IOException {
+            if (current == null || current.position() == 0)
+                return;
+            ByteBuffer full = current;
+            current = null;
+            full.flip();
+            try {
+                while (!queue.offer(full, 100, TimeUnit.MILLISECONDS)) {
+                    if (aborted)
+                        throw new IOException("Connection closed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            signal();
+        }
+
+        /**
+         * Marks the response as complete
+         *
+         * @param keepAlive whether the connection stays open afterwards
+         */
+        void finish(boolean keepAlive) throws IOException {
+            flush();
+            this.keepAlive = keepAlive;
+            done = true;
+            signal();
+        }
+
+        /**
+         * Marks the response as broken, the connection is closed after what was
+         * written so far
+         */
+        void fail() {
+            if (current != null)
+                OUTPUT_BUFFERS.release(current);
+            current = null;
+            keepAlive = false;
+            done = true;
+            signal();
+        }
+
+        private void next() throws IOException {
+            flush();
+            if (aborted)
+                throw new IOException("Connection closed");
+            current = OUTPUT_BUFFERS.acquire();
+        }
+
+        private void signal() {
+            ready.add(conn);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Listens on the port and runs the event loop forever
+     *
+     * @param port       to listen on
+     * @param workers    number of threads running the route handlers
+     * @param queueLimit number of requests that may wait for a worker
+     */
+    public NioServer(int port, int workers, int queueLimit) {
+        this(workers, queueLimit);
+        serve(port);
+    }
+
+    /**
+     * A server that does not listen yet, see serve()
+     *
+     * @param workers    number of threads running the route handlers
+     * @param queueLimit number of requests that may wait for a worker
+     */
+    NioServer(int workers, int queueLimit) {
+        routes = new WebServer();
+        pool = new ThreadPoolExecutor(Math.max(1, workers), Math.max(1, workers), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueLimit)));
+        routes.metrics.gauge("funhttp_queued_requests", "Requests waiting for a worker", () -> pool.getQueue().size());
+
+        Selector sel = null;
+        try {
+            sel = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        selector = sel;
+        if (selector != null) {
+            routes.chatEvents.addListener(() -> {
+                published = true;
+                selector.wakeup();
+            });
+        }
+    }
+
+    /**
+     * Listens on the port and runs the event loop until stop() is called
+     *
+     * @param port to listen on
+     */
+    public void serve(int port) {
+        if (selector == null)
+            return;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), WebServer.BACKLOG);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Listening on port " + port + " (nio) with " + pool.getMaximumPoolSize()
+                    + " workers, queue " + pool.getQueue().remainingCapacity());
+            run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null)
+                    close((Connection) key.attachment());
+            }
+            pool.shutdown();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Ends the event loop, which closes all connections, waits for the workers
+     * and closes the logs of the routes
+     */
+    public void stop() {
+        stopped = true;
+        if (selector != null)
+            selector.wakeup();
+        WebServer.awaitTermination(pool);
+        routes.stop();
+    }
+
+    /**
+     * The event loop: accept, read, write and close idle connections
+     */
+    private void run() {
+        while (!stopped) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            // responses the workers wrote (more of)
+            Connection conn;
+            while ((conn = ready.poll()) != null)
+                startWrite(conn);
+
+            // new chat messages
+            if (published) {
+                published = false;
+                for (Connection subscriber : new ArrayList<>(subscribers)) {
+                    try {
+                        sendEvents(subscriber);
+                    } catch (IOException e) {
+                        close(subscriber);
+                    }
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept((ServerSocketChannel) key.channel());
+                    else if (key.isReadable())
+                        read((Connection) key.attachment());
+                    else if (key.isWritable() && ((Connection) key.attachment()).events != null)
+                        writeEvents((Connection) key.attachment());
+                    else if (key.isWritable())
+                        write((Connection) key.attachment());
+                } catch (IOException | CancelledKeyException e) {
+                    if (key.attachment() != null)
+                        close((Connection) key.attachment());
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                closeIdle(now);
+                nextSweep = now + SWEEP_INTERVAL;
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        routes.metrics.connectionOpened();
+    }
+
+    private void read(Connection conn) throws IOException {
+        conn.in.compact();
+        if (!conn.in.hasRemaining())
+            throw new IOException("Request header too large");
+        int numRead;
+        try {
+            numRead = conn.channel.read(conn.in);
+        } finally {
+            conn.in.flip();
+        }
+        if (numRead < 0) {
+            close(conn);
+            return;
+        }
+        conn.lastActive = System.currentTimeMillis();
+        routes.metrics.read(numRead);
+        processInput(conn);
+    }
+
+    /**
+     * Parses the buffered bytes and hands a complete request to a worker. While a
+     * request is in progress the connection is not read, further pipelined
+     * requests wait in the buffer (or the socket) until the response is written.
+     * The request points into the buffer, so the buffer is not touched until the
+     * response is done.
+     */
+    private void processInput(Connection conn) throws IOException {
+        if (conn.busy)
+            return;
+        Request request;
+        try {
+            request = conn.parser.parse(conn.in);
+        } catch (RequestParser.BadRequestException e) {
+            // answered from the event loop, small enough to fit into the queue
+            conn.busy = true;
+            conn.keepAlive = false;
+            conn.key.interestOps(0);
+            ResponseStream stream = new ResponseStream(conn);
+            conn.response = stream;
+            stream.write(routes.badRequest(e, conn.client));
+            stream.finish(false);
+            return;
+        }
+        if (request == null)
+            return;
+
+        conn.busy = true;
+        conn.served++;
+        conn.keepAlive = request.isKeepAlive() && conn.served < WebServer.MAX_KEEP_ALIVE_REQUESTS;
+        conn.key.interestOps(0);
+        if (routes.isEventStream(request)) {
+            subscribe(conn, request);
+            return;
+        }
+        boolean keepAlive = conn.keepAlive;
+        ResponseStream response = new ResponseStream(conn);
+        conn.response = response;
+        try {
+            pool.execute(() -> {
+                try {
+                    response.finish(routes.respond(request, conn.client, response, keepAlive));
+                } catch (IOException | RuntimeException e) {
+                    // the headers may be out already, all we can do is close
+                    if (!response.aborted)
+                        e.printStackTrace();
+                    response.fail();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            routes.metrics.rejected();
+            // small enough to fit into the queue, so the event loop does not block
+            Response busy = new Response().setStatus(503, "Service Unavailable").setHeader("Retry-After", "1")
+                    .append("<html>Server is busy, please try again</html>");
+            routes.send(request, conn.client, busy, response, false, System.nanoTime());
+            response.finish(false);
+        }
+    }
+
+    /**
+     * Answers a request for /chat/stream. The handler only checks the limits and
+     * does not block, so it runs on the event loop; afterwards the event loop
+     * sends the events itself until the client closes the connection.
+     */
+    private void subscribe(Connection conn, Request request) throws IOException {
+        long start = System.nanoTime();
+        Response response = routes.createResponse(request, conn.client);
+        if (response.getStatus() != 200) {
+            // rate limited or too many subscribers, small enough to fit into the queue
+            ResponseStream stream = new ResponseStream(conn);
+            conn.response = stream;
+            conn.keepAlive = false;
+            routes.send(request, conn.client, response, stream, false, start);
+            stream.finish(false);
+            return;
+        }
+        conn.events = new ArrayDeque<>();
+        // the body ends when the connection is closed, nothing else is read from it
+        conn.events.add(ByteBuffer.wrap(response.toHead()));
+        conn.events.add(ChatBroadcast.HELLO.duplicate());
+        conn.lastEventId = routes.lastEventId(request);
+        conn.eventRequest = request;
+        conn.eventStart = start;
+        routes.chatEvents.subscribe();
+        subscribers.add(conn);
+        sendEvents(conn);
+    }
+
+    /**
+     * Queues the events the subscriber does not have yet and sends as much as the
+     * socket takes
+     */
+    private void sendEvents(Connection conn) throws IOException {
+        ChatBroadcast.Events events = routes.chatEvents.since(conn.lastEventId);
+        conn.lastEventId = events.lastId;
+        Collections.addAll(conn.events, events.buffers);
+        if (conn.events.size() > MAX_QUEUED_EVENTS)
+            throw new IOException("Subscriber does not keep up");
+        writeEvents(conn);
+    }
+
+    /**
+     * Writes the queued events with one gathering write, waits for OP_WRITE if
+     * the socket buffer is full. The connection stays readable so a closed
+     * connection is noticed.
+     */
+    private void writeEvents(Connection conn) throws IOException {
+        if (!conn.events.isEmpty()) {
+            long n = conn.channel.write(conn.events.toArray(new ByteBuffer[0]));
+            if (n > 0) {
+                conn.lastActive = System.currentTimeMillis();
+                conn.eventBytes += n;
+                routes.metrics.written(n);
+            }
+            while (!conn.events.isEmpty() && !conn.events.peek().hasRemaining())
+                conn.events.poll();
+        }
+        conn.key.interestOps(conn.events.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void startWrite(Connection conn) {
+        if (!conn.channel.isOpen() || conn.response == null)
+            return;
+        try {
+            write(conn);
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    /**
+     * Sends the buffers the worker has written so far. Waits for the worker (no
+     * interest) if it is not done yet, for the client (OP_WRITE) if the socket
+     * buffer is full.
+     */
+    private void write(Connection conn) throws IOException {
+        ResponseStream response = conn.response;
+        while (true) {
+            if (conn.out == null) {
+                // read done first, everything queued before it is then in the queue
+                boolean done = response.done;
+                conn.out = response.queue.poll();
+                if (conn.out == null) {
+                    if (done)
+                        break;
+                    conn.key.interestOps(0);
+                    return;
+                }
+            }
+            conn.channel.write(conn.out);
+            conn.lastActive = System.currentTimeMillis();
+            if (conn.out.hasRemaining()) {
+                conn.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            OUTPUT_BUFFERS.release(conn.out);
+            conn.out = null;
+        }
+
+        // response is complete
+        conn.response = null;
+        conn.busy = false;
+        if (!conn.keepAlive || !response.keepAlive) {
+            close(conn);
+            return;
+        }
+        conn.key.interestOps(SelectionKey.OP_READ);
+        // there may be a pipelined request in the buffer already
+        processInput(conn);
+    }
+
+    /**
+     * Closes keep-alive connections that waited longer than the idle timeout for
+     * their next request, and those whose client stopped reading the response
+     */
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (conn != null && conn.events != null) {
+                sendHeartbeat(conn, now);
+                continue;
+            }
+            if (conn != null && (!conn.busy || conn.out != null) && now - conn.lastActive > WebServer.IDLE_TIMEOUT)
+                close(conn);
+        }
+    }
+
+    /**
+     * Sends a comment to a subscriber that got nothing for a while, closes one
+     * that stopped reading
+     */
+    private void sendHeartbeat(Connection conn, long now) {
+        try {
+            if (!conn.events.isEmpty() && now - conn.lastActive > WebServer.IDLE_TIMEOUT) {
+                close(conn);
+            } else if (conn.events.isEmpty() && now - conn.lastActive > ChatBroadcast.HEARTBEAT) {
+                conn.events.add(ChatBroadcast.KEEP_ALIVE.duplicate());
+                writeEvents(conn);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn.channel.isOpen())
+            routes.metrics.connectionClosed();
+        try {
+            conn.key.cancel();
+            conn.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (conn.response != null) {
+            // lets a worker that waits for the queue give up
+            conn.response.aborted = true;
+            ByteBuffer queued;
+            while ((queued = conn.response.queue.poll()) != null)
+                OUTPUT_BUFFERS.release(queued);
+        }
+        if (conn.out != null) {
+            OUTPUT_BUFFERS.release(conn.out);
+            conn.out = null;
+        }
+        if (subscribers.remove(conn)) {
+            routes.chatEvents.unsubscribe();
+            routes.record(conn.eventRequest, conn.client, 200, conn.eventBytes, conn.eventStart);
+            conn.events.clear();
+            conn.busy = false; // the request was only needed for the record
+        }
+        // a worker may still read the request of a busy connection
+        if (!conn.busy && conn.in != null) {
+            WebServer.BUFFERS.release(conn.in);
+            conn.in = null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package funHttpServer;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how often one client may call a route, so a single client cannot use
+ * up the workers or the GitHub quota. Every client has a token bucket per route:
+ * it holds up to burst tokens, refills at rate tokens per second and every
+ * request takes one. A request that finds the bucket empty is answered with a
+ * 429 and told when to try again.
+ *
+ * A bucket is stored as a single long, the time at which it would be full again
+ * (the "generic cell rate algorithm", which behaves exactly like a token
+ * bucket). Taking a token is one compareAndSet, no lock. A bucket whose time
+ * lies in the past is full and behaves like a new one, so idle clients can be
+ * dropped at any time without changing a decision; this keeps the number of
+ * buckets bounded.
+ *
+ * Limits are set before the server starts, afterwards the limiter is shared by
+ * all threads.
+ */
+class RateLimiter {
+    /**
+     * Number of clients tracked per route. When there are more, idle ones are
+     * dropped; if all are active new clients are let through untracked.
+     */
+    public final static int MAX_CLIENTS = 10000;
+
+    /**
+     * Requests between two sweeps for idle clients
+     */
+    private final static int SWEEP_INTERVAL = 4096;
+
+    /**
+     * Nanoseconds between two sweeps when new clients find the table full, so
+     * a flood of new clients does not make every request walk the table
+     */
+    private final static long SWEEP_GAP = 10_000_000L;
+
+    /**
+     * The buckets of one route
+     */
+    private static class Limit {
+        // nanoseconds one token takes to refill
+        final long interval;
+        // nanoseconds a full bucket is ahead of an empty one
+        final long capacity;
+        // client -> time at which its bucket is full
+        final ConcurrentHashMap<InetAddress, AtomicLong> clients = new ConcurrentHashMap<>();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicBoolean sweeping = new AtomicBoolean();
+        volatile long lastSweep;
+
+        Limit(double rate, int burst, long now) {
+            interval = (long) (1_000_000_000L / rate);
+            capacity = interval * burst;
+            lastSweep = now;
+        }
+    }
+
+    // the time in nanoseconds
+    private final LongSupplier clock;
+
+    private final Map<String, Limit> limits = new HashMap<>();
+    private Limit fallback = null;
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+
+    public RateLimiter() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param clock the time in nanoseconds, tests set it by hand
+     */
+    RateLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Limits a route
+     *
+     * @param route route name (e.g. /github)
+     * @param rate  requests per second a client may make in the long run
+     * @param burst requests a client may make at once after being idle
+     */
+    public RateLimiter limit(String route, double rate, int burst) {
+        limits.put(route, new Limit(rate, burst, clock.getAsLong()));
+        return this;
+    }
+
+    /**
+     * Limits the routes that have no limit of their own (and requests no route
+     * answers), they share one bucket per client
+     */
+    public RateLimiter limitOthers(double rate, int burst) {
+        fallback = new Limit(rate, burst, clock.getAsLong());
+        return this;
+    }
+
+    /**
+     * Takes a token from the client's bucket for the route
+     *
+     * @param client address of the client
+     * @param route  route name, null for requests no route answers
+     * @return 0 if the request may go on, otherwise the nanoseconds until the
+     *         client gets its next token
+     */
+    public long acquire(InetAddress client, String route) {
+        Limit limit = route != null ? limits.getOrDefault(route, fallback) : fallback;
+        if (limit == null || client == null)
+            return 0;
+        long now = clock.getAsLong();
+        if (limit.requests.incrementAndGet() % SWEEP_INTERVAL == 0)
+            sweep(limit, now);
+
+        AtomicLong full = limit.clients.get(client);
+        if (full == null) {
+            if (limit.clients.size() >= MAX_CLIENTS && now - limit.lastSweep > SWEEP_GAP)
+                sweep(limit, now);
+            if (limit.clients.size() >= MAX_CLIENTS) {
+                untracked.increment();
+                return 0;
+            }
+            // a new client starts with a full bucket
+            full = limit.clients.computeIfAbsent(client, c -> new AtomicLong(now));
+        }
+        while (true) {
+            long current = full.get();
+            long base = Math.max(current, now);
+            long next = base + limit.interval;
+            if (next - now > limit.capacity) {
+                limited.increment();
+                return next - now - limit.capacity;
+            }
+            if (full.compareAndSet(current, next))
+                return 0;
+        }
+    }
+
+    /**
+     * Drops the clients whose buckets are full, only one thread sweeps at a time.
+     * A request that takes a token from a bucket while it is dropped gives its
+     * client one token more, which is harmless.
+     */
+    private static void sweep(Limit limit, long now) {
+        if (!limit.sweeping.compareAndSet(false, true))
+            return;
+        try {
+            limit.lastSweep = now;
+            Iterator<AtomicLong> buckets = limit.clients.values().iterator();
+            while (buckets.hasNext()) {
+                if (buckets.next().get() - now <= 0)
+                    buckets.remove();
+            }
+        } finally {
+            limit.sweeping.set(false);
+        }
+    }
+
+    /**
+     * @return requests that were refused
+     */
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    /**
+     * @return requests let through without a bucket because too many clients
+     *         were active
+     */
+    public long getUntracked() {
+        return untracked.sum();
+    }
+
+    /**
+     * @return clients that currently have a bucket, over all routes
+     */
+    public long getClients() {
+        long clients = 0;
+        for (Limit limit : limits.values())
+            clients += limit.clients.size();
+        if (fallback != null)
+            clients += fallback.clients.size();
+        return clients;
+    }
+}
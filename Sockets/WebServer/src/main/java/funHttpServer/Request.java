@@ -0,0 +1,350 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A parsed HTTP request: the request line and the headers. The request does
+ * not copy anything, it only remembers where the method, target, version and
+ * the headers are in the buffer the RequestParser read them into. Strings are
+ * only created when someone asks for them, header lookups and the keep-alive
+ * check compare the bytes directly.
+ *
+ * A request is reused by its parser and is only valid until the parser reads
+ * the next one.
+ */
+class Request {
+    /**
+     * Longest request head (request line and headers) we accept
+     */
+    final static int MAX_HEADER = 8192;
+
+    /**
+     * Most header lines we accept
+     */
+    final static int MAX_HEADERS = 100;
+
+    private byte[] data;
+    // index of the first byte of the request in data, all offsets are relative to it
+    private int base;
+
+    // -1 if the request line has no target / no version
+    private int methodEnd;
+    private int targetStart = -1;
+    private int targetEnd;
+    private int versionStart = -1;
+    private int versionEnd;
+    // end of the last line of the head
+    private int headEnd;
+
+    // name start, name end, value start, value end for every header
+    private final int[] headerSlices = new int[MAX_HEADERS * 4];
+    private int headerCount = 0;
+
+    // created on first use
+    private String method;
+    private String path;
+    private String version;
+    private Map<String, String> parameters;
+    // set by the server once it found the handler
+    private String route;
+    // the HTTP/2 stream the request came on, null for HTTP/1
+    private Http2Connection.Stream stream;
+
+    /**
+     * Starts a new request and finds the parts of its first line ("GET <path>
+     * HTTP/1.1")
+     *
+     * @param data  buffer the request is read into
+     * @param base  index of the first byte of the request
+     * @param end   end of the request line relative to base, without the line
+     *              break
+     */
+    void setRequestLine(byte[] data, int base, int end) {
+        this.data = data;
+        this.base = base;
+        method = null;
+        path = null;
+        version = null;
+        parameters = null;
+        route = null;
+        stream = null;
+        headerCount = 0;
+        headEnd = end;
+        targetStart = -1;
+        versionStart = -1;
+
+        int firstSpace = indexOf(' ', 0, end);
+        if (firstSpace < 0) {
+            methodEnd = end;
+            return;
+        }
+        methodEnd = firstSpace;
+        int secondSpace = indexOf(' ', firstSpace + 1, end);
+        targetStart = firstSpace + 1;
+        targetEnd = secondSpace < 0 ? end : secondSpace;
+        // drop the leading /, everything after it is the request
+        if (targetStart < targetEnd && data[base + targetStart] == '/')
+            targetStart++;
+        if (secondSpace >= 0) {
+            versionStart = secondSpace + 1;
+            versionEnd = end;
+        }
+    }
+
+    /**
+     * Adds a "Name: value" header line to the request, lines without a colon
+     * are ignored
+     *
+     * @param start start of the line relative to base
+     * @param end   end of the line relative to base, without the line break
+     * @throws IOException if there are too many headers
+     */
+    void addHeaderLine(int start, int end) throws IOException {
+        int colon = indexOf(':', start, end);
+        if (colon <= start)
+            return;
+        if (headerCount == MAX_HEADERS)
+            throw RequestParser.BadRequestException.tooLarge("Too many headers");
+        int nameEnd = colon;
+        while (nameEnd > start && isSpace(data[base + nameEnd - 1]))
+            nameEnd--;
+        int valueStart = colon + 1;
+        while (valueStart < end && isSpace(data[base + valueStart]))
+            valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && isSpace(data[base + valueEnd - 1]))
+            valueEnd--;
+
+        headEnd = end;
+        int slot = headerCount++ * 4;
+        headerSlices[slot] = start;
+        headerSlices[slot + 1] = nameEnd;
+        headerSlices[slot + 2] = valueStart;
+        headerSlices[slot + 3] = valueEnd;
+    }
+
+    /**
+     * Lets the request point to the buffer again after the parser moved the bytes
+     * (e.g. compacted the buffer while waiting for the rest of the request)
+     */
+    void moveTo(byte[] data, int base) {
+        this.data = data;
+        this.base = base;
+    }
+
+    /**
+     * Copies the request head out of the parser's buffer, for a request that has
+     * to stay valid while the parser goes on (e.g. the one that upgrades the
+     * connection to HTTP/2)
+     */
+    Request copy() {
+        Request copy = new Request();
+        copy.data = Arrays.copyOfRange(data, base, base + headEnd);
+        copy.base = 0;
+        copy.methodEnd = methodEnd;
+        copy.targetStart = targetStart;
+        copy.targetEnd = targetEnd;
+        copy.versionStart = versionStart;
+        copy.versionEnd = versionEnd;
+        copy.headEnd = headEnd;
+        System.arraycopy(headerSlices, 0, copy.headerSlices, 0, headerCount * 4);
+        copy.headerCount = headerCount;
+        return copy;
+    }
+
+    /**
+     * @return request method, e.g. GET
+     */
+    public String getMethod() {
+        if (method == null)
+            method = text(0, methodEnd);
+        return method;
+    }
+
+    /**
+     * Compares the method without creating a String
+     */
+    public boolean isMethod(String name) {
+        return equals(0, methodEnd, name, false);
+    }
+
+    /**
+     * @return the request target without the leading /, including the query
+     *         (e.g. "multiply?num1=3&num2=4"), or null if there was none
+     */
+    public String getPath() {
+        if (path == null && targetStart >= 0)
+            path = text(targetStart, targetEnd);
+        return path;
+    }
+
+    /**
+     * @return the part of the target after the '?' or null if there is none
+     */
+    public String getQuery() {
+        if (targetStart < 0)
+            return null;
+        int question = indexOf('?', targetStart, targetEnd);
+        return question < 0 ? null : text(question + 1, targetEnd);
+    }
+
+    /**
+     * The query parameters, decoded on the first call
+     *
+     * @return name to value, empty if there is no query
+     * @throws UnsupportedEncodingException if the query cannot be decoded
+     */
+    public Map<String, String> getParameters() throws UnsupportedEncodingException {
+        if (parameters == null) {
+            String query = getQuery();
+            parameters = query == null ? new LinkedHashMap<>() : WebServer.splitQuery(query);
+        }
+        return parameters;
+    }
+
+    /**
+     * @return name of the route that answers the request (e.g. /multiply), null
+     *         if none does
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    void setRoute(String route) {
+        this.route = route;
+    }
+
+    /**
+     * @return the HTTP/2 stream to answer on, null for an HTTP/1 request
+     */
+    Http2Connection.Stream getStream() {
+        return stream;
+    }
+
+    void setStream(Http2Connection.Stream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * @return protocol version, e.g. HTTP/1.1
+     */
+    public String getVersion() {
+        if (version == null)
+            version = versionStart < 0 ? "HTTP/1.0" : text(versionStart, versionEnd);
+        return version;
+    }
+
+    /**
+     * @param name header name, case insensitive
+     * @return the header value or null if it was not sent
+     */
+    public String getHeader(String name) {
+        int slot = findHeader(name);
+        return slot < 0 ? null : text(headerSlices[slot + 2], headerSlices[slot + 3]);
+    }
+
+    /**
+     * Compares a header value without creating a String
+     *
+     * @return true if the header was sent with this value (case insensitive)
+     */
+    public boolean hasHeader(String name, String value) {
+        int slot = findHeader(name);
+        return slot >= 0 && equals(headerSlices[slot + 2], headerSlices[slot + 3], value, true);
+    }
+
+    /**
+     * @return length of the request body, 0 if there is none
+     * @throws IOException if the Content-Length header is not a number
+     */
+    public long getContentLength() throws IOException {
+        int slot = findHeader("content-length");
+        if (slot < 0)
+            return 0;
+        int start = headerSlices[slot + 2];
+        int end = headerSlices[slot + 3];
+        if (start == end || end - start > 18)
+            throw new RequestParser.BadRequestException(400, "Bad Request",
+                    "Invalid Content-Length: " + text(start, end));
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data[base + i];
+            if (b < '0' || b > '9')
+                throw new RequestParser.BadRequestException(400, "Bad Request",
+                        "Invalid Content-Length: " + text(start, end));
+            length = length * 10 + (b - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Checks if the client wants to keep the connection open after this request.
+     * HTTP/1.1 keeps it open unless asked not to, HTTP/1.0 only if asked to.
+     *
+     * @return true if the connection may be reused
+     */
+    public boolean isKeepAlive() {
+        if (findHeader("transfer-encoding") >= 0)
+            return false; // we do not parse chunked request bodies
+        if (isHttp11())
+            return !hasHeader("connection", "close");
+        return hasHeader("connection", "keep-alive");
+    }
+
+    /**
+     * @return true for HTTP/1.1 clients, they understand chunked responses
+     */
+    public boolean isHttp11() {
+        return versionStart >= 0 && equals(versionStart, versionEnd, "HTTP/1.1", false);
+    }
+
+    /**
+     * @return the index of the header's slices or -1 if it was not sent
+     */
+    private int findHeader(String name) {
+        for (int slot = 0; slot < headerCount * 4; slot += 4) {
+            if (equals(headerSlices[slot], headerSlices[slot + 1], name, true))
+                return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the bytes from start to end with an ASCII string
+     */
+    private boolean equals(int start, int end, String text, boolean ignoreCase) {
+        if (end - start != text.length())
+            return false;
+        for (int i = 0; i < text.length(); i++) {
+            int b = data[base + start + i];
+            int c = text.charAt(i);
+            if (b != c && !(ignoreCase && toLower(b) == toLower(c)))
+                return false;
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[base + i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private String text(int start, int end) {
+        return new String(data, base + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -0,0 +1,141 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP request parser used by both engines. The bytes are read
+ * into a (pooled) heap ByteBuffer and scanned in place for line breaks, the
+ * Request only records where its parts are, nothing is copied and no String is
+ * created while parsing.
+ *
+ * The buffer position stays at the start of a request until the request is
+ * complete, so the caller can compact the buffer and read more bytes when a
+ * request is split over several reads; the bytes already scanned are not looked
+ * at again. The whole request head has to fit into the buffer. One parser (and
+ * its Request) is used per connection and parses one request after the other.
+ */
+class RequestParser {
+    /**
+     * Echo every received header line to the console, start with
+     * -DfunHttpServer.log=debug to see them
+     */
+    final static boolean ECHO = Log.isEnabled(Log.Level.DEBUG);
+
+    /**
+     * A request head the parser cannot take. The client gets the status and the
+     * connection is closed, the rest of it cannot be parsed.
+     */
+    static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final String reason;
+
+        BadRequestException(int status, String reason, String message) {
+            super(message);
+            this.status = status;
+            this.reason = reason;
+        }
+
+        /**
+         * @return 431 for a head that is too large
+         */
+        static BadRequestException tooLarge(String message) {
+            return new BadRequestException(431, "Request Header Fields Too Large", message);
+        }
+    }
+
+    private final Request request = new Request();
+    private boolean inHeaders = false;
+    // bytes of the current request that were scanned already
+    private int scanned = 0;
+    // start of the current line relative to the start of the request
+    private int lineStart = 0;
+    // body bytes of the last request that still have to be skipped
+    private long skip = 0;
+
+    /**
+     * Consumes bytes from the buffer until a request head is complete. Bytes
+     * after the head stay in the buffer for the next call (pipelining), a body is
+     * skipped by the next call.
+     *
+     * @param buffer heap buffer in read mode
+     * @return the complete request or null if more bytes are needed. The request
+     *         is reused and only valid until the next call
+     * @throws BadRequestException if the request is malformed or its head too
+     *                             large
+     */
+    public Request parse(ByteBuffer buffer) throws IOException {
+        // skip a request body, we only answer GET requests
+        if (skip > 0) {
+            int n = (int) Math.min(skip, buffer.remaining());
+            buffer.position(buffer.position() + n);
+            skip -= n;
+            if (skip > 0)
+                return null;
+        }
+        // tolerate empty lines between pipelined requests
+        if (scanned == 0) {
+            while (buffer.hasRemaining() && isLineBreak(buffer.get(buffer.position())))
+                buffer.position(buffer.position() + 1);
+        }
+
+        byte[] data = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        if (inHeaders)
+            request.moveTo(data, start); // the caller may have compacted the buffer
+
+        for (int i = start + scanned; i < end; i++) {
+            if (data[i] != '\n')
+                continue;
+            int lineEnd = i - start;
+            if (lineEnd > lineStart && data[i - 1] == '\r')
+                lineEnd--;
+            if (ECHO && (lineEnd > lineStart || !inHeaders))
+                echo(data, start + lineStart, lineEnd - lineStart);
+
+            if (!inHeaders) {
+                request.setRequestLine(data, start, lineEnd);
+                inHeaders = true;
+            } else if (lineEnd > lineStart) {
+                request.addHeaderLine(lineStart, lineEnd);
+            } else {
+                // headers end with an empty line
+                if (ECHO)
+                    System.out.println("FINISHED PARSING HEADER\n");
+                buffer.position(i + 1 - buffer.arrayOffset());
+                inHeaders = false;
+                scanned = 0;
+                lineStart = 0;
+                skip = request.getContentLength();
+                return request;
+            }
+            lineStart = i + 1 - start;
+        }
+
+        scanned = end - start;
+        if (scanned >= Request.MAX_HEADER)
+            throw BadRequestException.tooLarge("Request header too large");
+        return null;
+    }
+
+    /**
+     * @return true if part of a request has been read already
+     */
+    public boolean isPartial() {
+        return inHeaders || scanned > 0 || skip > 0;
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    private static void echo(byte[] data, int offset, int length) {
+        synchronized (System.out) {
+            System.out.print("Received: ");
+            System.out.write(data, offset, length);
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An HTTP response that is built up by the route handlers. The status line and
+ * headers are only written when the response is sent, so the Content-Length
+ * and Connection headers always match the body.
+ *
+ * The body is either text appended by the handler, a ready byte array or a
+ * Body that writes itself while the response is sent. Text is encoded straight
+ * into the connection in small pieces instead of being copied into a String
+ * and a byte array first. A streamed Body has no known length and is sent with
+ * Transfer-Encoding: chunked, so it never has to be in memory as a whole.
+ *
+ * Only /github streams, its page grows with the repos of the user. The cached
+ * pages (/ lists at most one page of DirectoryIndex entries, /random) are byte
+ * arrays shared by all responses, the other handlers append a few hundred
+ * bytes of text.
+ *
+ * Text bodies (HTML, JSON) are compressed if the client accepts gzip or
+ * deflate: cached pages come pre-compressed (EncodedBody), everything else of
+ * at least Compression.THRESHOLD bytes is compressed while it is sent, and
+ * then also sent chunked.
+ */
+class Response {
+    /**
+     * Writes a body of unknown length
+     */
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Largest chunk of a chunked body and size of the encoding buffer for text
+     */
+    public final static int CHUNK_SIZE = 8192;
+
+    private final static byte[] CRLF = { '\r', '\n' };
+    private final static byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private int status = 200;
+    private String reason = "OK";
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final StringBuilder body = new StringBuilder();
+    private byte[] bytes = null;
+    private EncodedBody encoded = null;
+    private Body stream = null;
+
+    public Response() {
+        headers.put("Content-Type", "text/html; charset=utf-8");
+    }
+
+    /**
+     * @param status HTTP status code, e.g. 404
+     * @param reason reason phrase, e.g. Not Found
+     */
+    public Response setStatus(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Response setContentType(String type) {
+        return setHeader("Content-Type", type);
+    }
+
+    public Response setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Appends text to the body
+     */
+    public Response append(Object text) {
+        body.append(text);
+        return this;
+    }
+
+    /**
+     * Uses the given bytes as the body instead of the appended text
+     */
+    public Response setBody(byte[] bytes) {
+        this.bytes = bytes;
+        return this;
+    }
+
+    /**
+     * Uses a cached body, the pre-compressed version is sent if the client
+     * accepts it
+     */
+    public Response setBody(EncodedBody encoded) {
+        this.encoded = encoded;
+        this.bytes = encoded.getBytes();
+        return this;
+    }
+
+    /**
+     * Uses a body that is written while the response is sent. Its length is not
+     * known up front, so it is sent chunked (HTTP/1.1) or until the connection is
+     * closed (HTTP/1.0).
+     */
+    public Response setBody(Body stream) {
+        this.stream = stream;
+        return this;
+    }
+
+    /**
+     * Sends the response as the request can take it (chunked, compressed)
+     *
+     * @param out       stream of the connection, flushed by the caller
+     * @param keepAlive whether the connection should stay open after this
+     *                  response
+     * @return whether the connection may stay open, false if the body had to be
+     *         ended by closing it
+     */
+    public boolean write(OutputStream out, boolean keepAlive, Request request) throws IOException {
+        String encoding = Compression.negotiate(request.getHeader("accept-encoding"));
+        if (request.getStream() != null) {
+            write(out, request.getStream(), encoding);
+            return keepAlive;
+        }
+        return write(out, keepAlive, request.isHttp11(), encoding);
+    }
+
+    /**
+     * Sends status line, headers and body
+     *
+     * @param out       stream of the connection, flushed by the caller
+     * @param keepAlive whether the connection should stay open after this
+     *                  response
+     * @param chunked   whether the client understands chunked bodies (HTTP/1.1)
+     * @param encoding  content coding the client accepts (Compression.GZIP or
+     *                  DEFLATE), null for none
+     * @return whether the connection may stay open, false if the body had to be
+     *         ended by closing it
+     */
+    public boolean write(OutputStream out, boolean keepAlive, boolean chunked, String encoding) throws IOException {
+        boolean compressible = isCompressible();
+        String contentEncoding = compressible ? contentEncoding(chunked, encoding) : null;
+        byte[] content = encoded != null && contentEncoding != null ? encoded.getBytes(contentEncoding) : bytes;
+        // a body of unknown length
+        boolean streamed = isStreamed(contentEncoding);
+        if (streamed && !chunked)
+            keepAlive = false;
+
+        long length = streamed ? -1 : content != null ? content.length : utf8Length(body);
+        out.write(head(contentEncoding, compressible, length, chunked, keepAlive));
+
+        if (!streamed) {
+            if (content != null)
+                out.write(content);
+            else
+                writeUtf8(body, out);
+        } else if (chunked) {
+            ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+            if (contentEncoding != null) {
+                // closing only finishes the compressed data, the chunked stream ignores it
+                try (OutputStream compressed = Compression.wrap(chunks, contentEncoding, Compression.STREAM_LEVEL)) {
+                    writeBody(compressed);
+                }
+            } else {
+                writeBody(chunks);
+            }
+            chunks.finish();
+        } else {
+            writeBody(out);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * The status line and headers of a response whose body someone else sends
+     * and that ends when the connection is closed (an event stream on the nio
+     * engine)
+     */
+    byte[] toHead() {
+        return head(null, false, -1, false, false);
+    }
+
+    /**
+     * @param length  length of the body, -1 if it is not known
+     * @param chunked whether a body of unknown length is sent chunked
+     */
+    private byte[] head(String contentEncoding, boolean compressible, long length, boolean chunked,
+            boolean keepAlive) {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(" ").append(reason).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        if (contentEncoding != null)
+            head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        if (compressible)
+            head.append("Vary: Accept-Encoding\r\n");
+        if (length >= 0)
+            head.append("Content-Length: ").append(length).append("\r\n");
+        else if (chunked)
+            head.append("Transfer-Encoding: chunked\r\n");
+        if (keepAlive) {
+            head.append("Connection: keep-alive\r\n");
+            head.append("Keep-Alive: timeout=").append(WebServer.IDLE_TIMEOUT / 1000).append("\r\n");
+        } else {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Sends the response on an HTTP/2 stream: the status and headers as a
+     * header block, the body as DATA frames. The stream frames the body, so
+     * nothing is chunked and a body of unknown length just ends with the
+     * stream; Connection and Keep-Alive do not exist in HTTP/2.
+     *
+     * @param out      the stream, possibly wrapped (e.g. to count the bytes)
+     * @param h2       the stream itself
+     * @param encoding content coding the client accepts, null for none
+     */
+    public void write(OutputStream out, Http2Connection.Stream h2, String encoding) throws IOException {
+        boolean compressible = isCompressible();
+        String contentEncoding = compressible ? contentEncoding(true, encoding) : null;
+        byte[] content = encoded != null && contentEncoding != null ? encoded.getBytes(contentEncoding) : bytes;
+        boolean streamed = isStreamed(contentEncoding);
+        long length = streamed ? -1 : content != null ? content.length : utf8Length(body);
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put(":status", String.valueOf(status));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("transfer-encoding"))
+                fields.put(name, header.getValue());
+        }
+        if (contentEncoding != null)
+            fields.put("content-encoding", contentEncoding);
+        if (compressible)
+            fields.put("vary", "Accept-Encoding");
+        if (!streamed)
+            fields.put("content-length", String.valueOf(length));
+        h2.writeHeaders(fields, length == 0);
+        if (length == 0)
+            return;
+
+        if (!streamed) {
+            if (content != null)
+                out.write(content);
+            else
+                writeUtf8(body, out);
+        } else if (contentEncoding != null) {
+            // closing the compressed stream also ends the HTTP/2 stream
+            try (OutputStream compressed = Compression.wrap(out, contentEncoding, Compression.STREAM_LEVEL)) {
+                writeBody(compressed);
+            }
+        } else {
+            writeBody(out);
+        }
+        out.close();
+    }
+
+    private boolean isCompressible() {
+        return !headers.containsKey("Content-Encoding") && Compression.isCompressible(headers.get("Content-Type"));
+    }
+
+    /**
+     * Picks the content coding of a compressible body: the pre-compressed
+     * version of a cached body, or compression while it is sent for streamed and
+     * large bodies if the body can be framed (chunked)
+     *
+     * @return the coding or null if the body is sent as it is
+     */
+    private String contentEncoding(boolean chunked, String encoding) {
+        if (encoding == null)
+            return null;
+        if (encoded != null)
+            return encoded.getBytes(encoding) != null ? encoding : null;
+        if (chunked && (stream != null || (bytes != null ? bytes.length : utf8Length(body)) >= Compression.THRESHOLD))
+            return encoding; // compressed while it is sent
+        return null;
+    }
+
+    /**
+     * @return true if the length of the body is not known before it is sent
+     */
+    private boolean isStreamed(String contentEncoding) {
+        return stream != null || (contentEncoding != null && encoded == null);
+    }
+
+    private void writeBody(OutputStream out) throws IOException {
+        if (stream != null)
+            stream.writeTo(out);
+        else if (bytes != null)
+            out.write(bytes);
+        else
+            writeUtf8(body, out);
+    }
+
+    /**
+     * Encodes the whole response into a byte array, only for small responses
+     *
+     * @param keepAlive whether the connection stays open after this response
+     * @return the byte encoded HTTP response
+     */
+    public byte[] toBytes(boolean keepAlive) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out, keepAlive, true, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by ByteArrayOutputStream
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Number of bytes the text takes in UTF-8, without encoding it
+     */
+    static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3; // a lone surrogate becomes '?'
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the text piece by piece into the stream
+     */
+    private static void writeUtf8(CharSequence text, OutputStream out) throws IOException {
+        if (text.length() == 0)
+            return;
+        // like String.getBytes, characters that cannot be encoded become '?'
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer in = CharBuffer.wrap(text);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, text.length() * 3L + 4));
+        while (encoder.encode(in, buffer, true).isOverflow()) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Frames everything written to it as chunks of at most CHUNK_SIZE bytes
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int size = 0;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == chunk.length)
+                writeChunk();
+            chunk[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == chunk.length)
+                    writeChunk();
+                int n = Math.min(len, chunk.length - size);
+                System.arraycopy(b, off, chunk, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Sends what was written so far as one chunk
+         */
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            if (size == 0)
+                return; // an empty chunk would end the body
+            out.write(Integer.toHexString(size).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(chunk, 0, size);
+            out.write(CRLF);
+            size = 0;
+        }
+
+        /**
+         * Sends the rest and the last (empty) chunk
+         */
+        void finish() throws IOException {
+            writeChunk();
+            out.write(LAST_CHUNK);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package funHttpServer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the handler for a request path. Handlers are registered for an exact
+ * path ("multiply") or for a prefix ("file/"), the query is not part of the
+ * match. All routes are stored in a trie with one node per character, so
+ * resolving a path walks it once, no matter how many routes there are. An exact
+ * route wins over a prefix, a longer prefix over a shorter one.
+ *
+ * Routes are registered before the server starts, afterwards the router is
+ * only read and can be shared by all threads.
+ */
+class Router {
+    /**
+     * A registered handler and the name it is reported under in the metrics
+     * ("/multiply", "/file/*")
+     */
+    public static class Route {
+        public final String name;
+        public final Handler handler;
+
+        Route(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<>();
+        Route exact;
+        Route prefix;
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * @param path    path without the leading / and without a query
+     * @param handler answers requests for exactly this path
+     */
+    public Router exact(String path, Handler handler) {
+        node(path).exact = new Route("/" + path, handler);
+        return this;
+    }
+
+    /**
+     * @param prefix  start of the path without the leading /
+     * @param handler answers requests for all paths starting with the prefix
+     */
+    public Router prefix(String prefix, Handler handler) {
+        node(prefix).prefix = new Route("/" + prefix + "*", handler);
+        return this;
+    }
+
+    /**
+     * @param path request path without the leading /, may contain a query
+     * @return the route or null if no route matches
+     */
+    public Route resolve(String path) {
+        Node node = root;
+        Route longestPrefix = root.prefix;
+        int end = path.indexOf('?');
+        if (end < 0)
+            end = path.length();
+        for (int i = 0; i < end; i++) {
+            node = node.children.get(path.charAt(i));
+            if (node == null)
+                return longestPrefix;
+            if (node.prefix != null)
+                longestPrefix = node.prefix;
+        }
+        return node.exact != null ? node.exact : longestPrefix;
+    }
+
+    private Node node(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++)
+            node = node.children.computeIfAbsent(path.charAt(i), c -> new Node());
+        return node;
+    }
+}
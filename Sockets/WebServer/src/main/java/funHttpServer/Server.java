@@ -0,0 +1,21 @@
+package funHttpServer;
+
+/**
+ * An engine of the fun web server (WebServer or NioServer) that listens once it
+ * is told the port, so a benchmark can run several of them one after the other
+ * in one JVM
+ */
+interface Server {
+    /**
+     * Accepts connections until stop() is called, does not return before
+     *
+     * @param port to listen on
+     */
+    void serve(int port);
+
+    /**
+     * Stops accepting connections and releases the threads, files and watchers
+     * of the server
+     */
+    void stop();
+}
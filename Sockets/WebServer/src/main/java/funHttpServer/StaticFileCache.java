@@ -0,0 +1,141 @@
+package funHttpServer;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of response bodies that are built from the files in www/ (e.g. the root
+ * page or the random page). The bodies are kept ready to send, together with
+ * their gzip and deflate versions (see EncodedBody), keyed by request path. A DirectoryWatcher drops entries when the file they
+ * were built from changes. When the total size goes over the limit the least
+ * recently used entries are evicted.
+ */
+class StaticFileCache {
+    /**
+     * Loads the body of an entry on a cache miss
+     */
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private static class Entry {
+        final EncodedBody body;
+        final String file;
+
+        Entry(EncodedBody body, String file) {
+            this.body = body;
+            this.file = file;
+        }
+    }
+
+    private final long maxBytes;
+    private final DirectoryWatcher watcher;
+    // access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    // bumped on every invalidation so loads that raced with a change are not stored
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param watcher  watches the directory the entries are built from
+     * @param maxBytes upper limit for the size of all cached bodies
+     */
+    public StaticFileCache(DirectoryWatcher watcher, long maxBytes) {
+        this.watcher = watcher;
+        this.maxBytes = maxBytes;
+        watcher.addListener(this::invalidate);
+    }
+
+    /**
+     * Returns the cached body or loads and caches it
+     *
+     * @param key    request path
+     * @param file   name of the file in the watched directory the body is built
+     *               from, null if it depends on the whole directory (e.g. a file
+     *               listing)
+     * @param loader builds the body on a miss
+     * @return the body, compressed on the miss
+     */
+    public EncodedBody get(String key, String file, Loader loader) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.body;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        EncodedBody body = EncodedBody.of(loader.load());
+        if (!watcher.isWatching() || body.size() > maxBytes)
+            return body; // we would not notice changes, or it is too big
+
+        synchronized (this) {
+            if (generation == loadGeneration && !entries.containsKey(key)) {
+                entries.put(key, new Entry(body, file));
+                bytes += body.size();
+                evict();
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Drops the entries built from the file, and all that depend on the whole
+     * directory
+     *
+     * @param file name of the changed file, null to drop everything
+     */
+    public synchronized void invalidate(String file) {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (file == null || entry.file == null || entry.file.equals(file)) {
+                bytes -= entry.body.size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes least recently used entries until we are within the limit
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().body.size();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
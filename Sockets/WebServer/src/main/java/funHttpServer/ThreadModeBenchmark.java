@@ -0,0 +1,125 @@
+/*
+Compares the ways the funHttpServer.WebServer can run its connections when a
+lot of clients show up at the same time and every request blocks on a slow
+upstream (the /github endpoint against a stubbed GitHub API):
+
+thread  - a new platform thread per connection
+pool    - a fixed pool of platform threads with a queue (the default engine)
+virtual - a new virtual thread per connection (needs Java 21, otherwise this
+          falls back to platform threads)
+
+For every mode all clients connect at once, send one request and wait for the
+answer. The benchmark reports the time until all clients are done, the
+latency percentiles and the peak number of platform threads in this JVM.
+
+Run through
+
+gradle ThreadModeBenchmark
+
+or with arguments: [clients(int)] [pool workers(int)] [delay ms(int)]
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ThreadModeBenchmark {
+    public static void main(String args[]) throws Exception {
+        int clients = 10000;
+        int poolWorkers = 200;
+        int delay = 50;
+        try {
+            if (args.length > 0)
+                clients = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                poolWorkers = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                delay = Integer.parseInt(args[2]);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Expected arguments: [clients(int)] [pool workers(int)] [delay ms(int)]");
+            System.exit(1);
+        }
+
+        // the stub has to be known before the WebServer class is loaded
+        GitHubStub stub = new GitHubStub(0, delay);
+        System.setProperty("github.api", stub.getUrl());
+        // all clients come from localhost, the limits per client would stop them
+        System.setProperty("funHttpServer.rateLimit", "false");
+        LoadTest.useTemporaryDirectory();
+
+        String[] modes = { "thread", "pool", "virtual" };
+
+        System.out.println("clients=" + clients + " pool workers=" + poolWorkers + " upstream delay=" + delay + "ms");
+        System.out.println("mode\ttime ms\treq/s\tp50 ms\tp99 ms\tmax ms\tfailed\tpeak threads");
+        for (String mode : modes) {
+            // the server of the mode before is stopped, its threads are gone
+            Server server = mode.equals("thread") ? new WebServer(command -> new Thread(command).start(), 0)
+                    : mode.equals("pool") ? new WebServer(poolWorkers, clients)
+                    : new WebServer(WebServer.newVirtualThreadExecutor(), 0);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            int port = LoadTest.startServer(server);
+            threads.resetPeakThreadCount();
+            run(mode, port, clients, threads);
+            server.stop();
+        }
+        stub.stop();
+        System.exit(0);
+    }
+
+    /**
+     * Lets all clients send one request at the same time and prints the results
+     */
+    static void run(String mode, int port, int clients, ThreadMXBean threads) throws InterruptedException {
+        long[] latencies = new long[clients];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        // the clients need as many threads as the server, use virtual ones if we can
+        ExecutorService clientThreads = WebServer.newVirtualThreadExecutor();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            clientThreads.execute(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    String status = LoadTest.get(port, LoadTest.uncachedQuery());
+                    latencies[client] = System.nanoTime() - begin;
+                    if (!status.contains(" 200 "))
+                        failed.incrementAndGet();
+                } catch (IOException | InterruptedException e) {
+                    latencies[client] = Long.MAX_VALUE;
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        clientThreads.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%s\t%d\t%.0f\t%d\t%d\t%d\t%d\t%d%n", mode, elapsed, clients * 1000.0 / Math.max(1, elapsed),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0), failed.get(),
+                threads.getPeakThreadCount());
+    }
+
+    /**
+     * @return the latency at the given fraction of the sorted values in ms
+     */
+    static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        long value = sorted[Math.max(0, index)];
+        return value == Long.MAX_VALUE ? -1 : value / 1000000;
+    }
+}
@@ -7,7 +7,10 @@ You can also do some other simple GET requests:
 3) /file/filename shows you the raw file (not as HTML)
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
-   JSON which will for now only be printed in the console. See the todo below
+   JSON which will for now only be printed in the console. See the todo below.
+   The answers from GitHub are cached for a minute (see GitHubClient)
+6) /metrics shows request counts, latencies per route and more in the Prometheus text format
+7) /chat/stream sends new chat messages as they come in (Server-Sent Events)
 
 The reading of the request is done "manually", meaning no library that helps making things a 
 little easier is used. This is done so you see exactly how to pars the request and 
@@ -18,10 +21,19 @@ package funHttpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -29,51 +41,551 @@ import org.json.JSONObject;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 
-class WebServer {
+class WebServer implements Server {
+    /**
+     * Number of worker threads used when none is given on the command line. A
+     * value of 0 handles every connection on the accept thread.
+     */
+    public final static int DEFAULT_WORKERS = 16;
+
+    /**
+     * Number of accepted connections that may wait for a free worker before new
+     * ones are answered with a 503.
+     */
+    public final static int DEFAULT_QUEUE = 64;
+
+    /**
+     * Milliseconds a keep-alive connection may stay idle before it is closed
+     */
+    public final static int IDLE_TIMEOUT = 5000;
+
+    /**
+     * Number of requests served on one connection before it is closed, so a
+     * single client cannot keep a worker forever
+     */
+    public final static int MAX_KEEP_ALIVE_REQUESTS = 100;
+
+    /**
+     * Milliseconds a request waits for an in-flight slot before it gets a 503
+     */
+    public final static int IN_FLIGHT_WAIT = 1000;
+
+    /**
+     * Length of the queue of connections the OS accepted but we did not yet
+     */
+    public final static int BACKLOG = 1024;
+
+    /**
+     * Read buffers of both engines, one per open connection
+     */
+    final static BufferPool BUFFERS = new BufferPool(Request.MAX_HEADER, 1024);
+
+    /**
+     * Upper limit for the bodies kept in the static file cache
+     */
+    public final static long CACHE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Base URL of the GitHub REST API, can be pointed at a local stub with
+     * -Dgithub.api=http://localhost:PORT/
+     */
+    public final static String GITHUB_API = System.getProperty("github.api", "https://api.github.com/");
+
+    /**
+     * Requests per second one client may send to /github, -DfunHttpServer.githubRate=
+     */
+    public final static double GITHUB_RATE = Double.parseDouble(System.getProperty("funHttpServer.githubRate", "1"));
+
+    /**
+     * Requests per second one client may send to /chat
+     */
+    public final static double CHAT_RATE = Double.parseDouble(System.getProperty("funHttpServer.chatRate", "5"));
+
+    /**
+     * Requests per second one client may send to all other routes together
+     */
+    public final static double DEFAULT_RATE = Double.parseDouble(System.getProperty("funHttpServer.rate", "1000"));
+
+    /**
+     * File of the access log, -DfunHttpServer.accessLog= (empty) turns it off
+     */
+    public final static String ACCESS_LOG = System.getProperty("funHttpServer.accessLog", "access.log");
+
+    /**
+     * Directory of the pages and the chat log, -DfunHttpServer.www= points the
+     * server (e.g. a benchmark) at another one
+     */
+    public final static File WWW = new File(System.getProperty("funHttpServer.www", "www"));
+
+    /**
+     * File the chat messages are appended to, -DfunHttpServer.chatLog=. It is
+     * not in www/: the root page lists www/ and would be rebuilt (and compressed
+     * again) every time the log is written.
+     */
+    public final static String CHAT_LOG = System.getProperty("funHttpServer.chatLog", "chat.html");
+
     public static void main(String args[]) {
-        WebServer server = new WebServer(9000);
+        int port = 9000;
+        int workers = DEFAULT_WORKERS;
+        int queue = DEFAULT_QUEUE;
+        String engine = "blocking";
+        try {
+            if (args.length > 0)
+                port = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                workers = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                queue = Integer.parseInt(args[2]);
+            if (args.length > 3)
+                engine = args[3];
+        } catch (NumberFormatException nfe) {
+            System.out.println("Expected arguments: [port(int)] [workers(int)] [queue(int)] [blocking|thread|virtual|nio]");
+            System.exit(1);
+        }
+        Server server = create(engine, workers, queue);
+        if (server == null) {
+            System.out.println("Unknown engine " + engine + ", expected blocking, thread, virtual or nio");
+            System.exit(1);
+        }
+        server.serve(port);
     }
 
     /**
-     * Main thread
+     * Creates a server with the engine, it listens when serve() is called
+     *
+     * @param engine  blocking, thread, virtual or nio
+     * @param workers worker threads (blocking, nio) or requests in flight (thread,
+     *                virtual)
+     * @param queue   connections (blocking) or requests (nio) that may wait for a
+     *                worker
+     * @return the server, null for an unknown engine
+     */
+    static Server create(String engine, int workers, int queue) {
+        if (engine.equalsIgnoreCase("nio"))
+            return new NioServer(workers, queue);
+        if (engine.equalsIgnoreCase("blocking"))
+            return new WebServer(workers, queue);
+        // a new platform or virtual thread for every connection, workers caps the
+        // requests
+        if (engine.equalsIgnoreCase("thread"))
+            return new WebServer(command -> new Thread(command).start(), workers);
+        if (engine.equalsIgnoreCase("virtual"))
+            return new WebServer(newVirtualThreadExecutor(), workers);
+        return null;
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task. Virtual threads
+     * need Java 21, the method is looked up at runtime so the server still builds
+     * and runs on older versions where it falls back to platform threads.
+     * 
+     * @return executor that runs every task on its own (virtual) thread
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads need Java 21, using platform threads instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Only creates the route handlers without listening on a port, used by the
+     * other engines (see NioServer)
+     */
+    WebServer() {
+        this(null, 0);
+    }
+
+    /**
+     * Main thread, uses the default worker pool
      * 
      * @param port to listen on
      */
     public WebServer(int port) {
-        ServerSocket server = null;
-        Socket sock = null;
-        InputStream in = null;
-        OutputStream out = null;
+        this(port, DEFAULT_WORKERS, DEFAULT_QUEUE);
+    }
 
+    /**
+     * Main thread. Accepts connections and hands each socket to a bounded pool of
+     * workers so one slow request (e.g. /github) does not block all others. When
+     * all workers are busy and the queue is full the client gets a 503.
+     * 
+     * @param port       to listen on
+     * @param workers    number of worker threads, 0 handles requests on the
+     *                   accept thread
+     * @param queueLimit number of connections that may wait for a worker
+     */
+    public WebServer(int port, int workers, int queueLimit) {
+        this(workers, queueLimit);
+        serve(port);
+    }
+
+    /**
+     * A server with a bounded pool of workers that does not listen yet, see
+     * serve()
+     *
+     * @param workers    number of worker threads, 0 handles requests on the
+     *                   accept thread
+     * @param queueLimit number of connections that may wait for a worker
+     */
+    WebServer(int workers, int queueLimit) {
+        this(workers > 0 ? new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueLimit))) : null, 0);
+    }
+
+    /**
+     * Main thread. Accepts connections and hands each socket to the executor. With
+     * a thread per connection (e.g. virtual threads) the number of requests that
+     * are processed at the same time is capped instead, a request that does not get
+     * a slot within IN_FLIGHT_WAIT is answered with a 503.
+     * 
+     * @param port        to listen on
+     * @param connections runs the connections, null handles requests on the
+     *                    accept thread
+     * @param maxInFlight requests processed at the same time, 0 for no limit
+     */
+    WebServer(int port, Executor connections, int maxInFlight) {
+        this(connections, maxInFlight);
+        serve(port);
+    }
+
+    /**
+     * A server that hands the connections to the executor once serve() is
+     * called
+     *
+     * @param connections runs the connections, null handles requests on the
+     *                    accept thread
+     * @param maxInFlight requests processed at the same time, 0 for no limit
+     */
+    WebServer(Executor connections, int maxInFlight) {
+        this.connections = connections;
+        this.maxInFlight = maxInFlight;
+        if (maxInFlight > 0) {
+            inFlight = new Semaphore(maxInFlight);
+            metrics.gauge("funhttp_waiting_requests", "Requests waiting for an in-flight slot",
+                    inFlight::getQueueLength);
+        }
+        if (connections instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) connections;
+            metrics.gauge("funhttp_queued_connections", "Accepted connections waiting for a worker",
+                    () -> pool.getQueue().size());
+        }
+        precompress();
+    }
+
+    /**
+     * Accepts connections until stop() is called
+     *
+     * @param port to listen on
+     */
+    public void serve(int port) {
+        ServerSocket server = null;
         try {
-            server = new ServerSocket(port);
+            server = new ServerSocket(port, BACKLOG);
+            listener = server;
+            if (stopped)
+                return;
+            Log.info("Listening on port " + port + " with " + describe(connections, maxInFlight));
+            chatEvents.setMaxSubscribers(maxSubscribers(connections));
             while (true) {
-                sock = server.accept();
-                out = sock.getOutputStream();
-                in = sock.getInputStream();
-                byte[] response = createResponse(in);
-                out.write(response);
-                out.flush();
-                in.close();
-                out.close();
-                sock.close();
+                Socket sock = server.accept();
+                if (connections == null) {
+                    handleConnection(sock);
+                    continue;
+                }
+                try {
+                    connections.execute(() -> handleConnection(sock));
+                } catch (RejectedExecutionException ree) {
+                    rejectConnection(sock);
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!stopped)
+                e.printStackTrace();
         } finally {
-            if (sock != null) {
+            if (connections instanceof ExecutorService)
+                ((ExecutorService) connections).shutdown();
+            if (server != null) {
                 try {
                     server.close();
                 } catch (IOException e) {
-                    // TODO Auto-generated catch block
                     e.printStackTrace();
                 }
             }
         }
     }
 
+    /**
+     * Stops accepting connections, waits up to IDLE_TIMEOUT for the workers to
+     * finish the connections they serve and closes the watcher of www/, the chat
+     * log and the access log. The server cannot be started again.
+     */
+    public void stop() {
+        stopped = true;
+        ServerSocket server = listener;
+        if (server != null) {
+            try {
+                server.close(); // ends the accept loop
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (connections instanceof ExecutorService)
+            awaitTermination((ExecutorService) connections);
+        www.close();
+        try {
+            if (chat != null)
+                chat.close();
+            if (accessLog != null)
+                accessLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Shuts the executor down and waits up to IDLE_TIMEOUT for its tasks, so its
+     * threads are gone when the next server starts in the same JVM
+     */
+    static void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A subscriber of /chat/stream keeps its connection's thread until it goes
+     * away. Workers of a pool are shared, so only a quarter of them may be held
+     * by subscribers; the others stay free for the normal requests.
+     *
+     * @return clients that may subscribe to /chat/stream at the same time
+     */
+    static int maxSubscribers(Executor connections) {
+        if (connections == null)
+            return 0; // a subscriber would block the accept thread
+        if (connections instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) connections).getMaximumPoolSize() / 4;
+        return ChatBroadcast.MAX_SUBSCRIBERS; // a thread per connection
+    }
+
+    private static String describe(Executor connections, int maxInFlight) {
+        String limit = maxInFlight > 0 ? ", at most " + maxInFlight + " requests in flight" : "";
+        if (connections == null)
+            return "no worker pool";
+        if (connections instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) connections;
+            return pool.getMaximumPoolSize() + " workers, queue " + pool.getQueue().remainingCapacity() + limit;
+        }
+        return "a thread per connection" + limit;
+    }
+
+    /**
+     * Serves requests from the socket until the client asks to close the
+     * connection, stays idle for longer than IDLE_TIMEOUT or reaches
+     * MAX_KEEP_ALIVE_REQUESTS. Pipelined requests are answered in the order they
+     * arrived and their responses are flushed together. A client that starts
+     * with the HTTP/2 preface or asks for Upgrade: h2c is handed to an
+     * Http2Connection, which answers its requests concurrently.
+     * 
+     * @param sock accepted client socket
+     */
+    private void handleConnection(Socket sock) {
+        ByteBuffer buffer = BUFFERS.acquire();
+        metrics.connectionOpened();
+        try {
+            sock.setSoTimeout(IDLE_TIMEOUT);
+            InputStream in = sock.getInputStream();
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            RequestParser parser = new RequestParser();
+            buffer.flip(); // nothing read yet
+
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                if (served == 0 && Http2Connection.isPreface(buffer)) {
+                    // HTTP/2 with prior knowledge
+                    new Http2Connection(this, sock, in, out, buffer).serve();
+                    break;
+                }
+                Request request;
+                try {
+                    request = parser.parse(buffer);
+                } catch (RequestParser.BadRequestException e) {
+                    out.write(badRequest(e, sock.getInetAddress()));
+                    break;
+                }
+                if (request == null) {
+                    try {
+                        if (!fill(in, buffer))
+                            break; // client closed the connection
+                    } catch (SocketTimeoutException ste) {
+                        break; // idle for too long
+                    }
+                    continue;
+                }
+
+                served++;
+                if (Http2Connection.isUpgrade(request)) {
+                    // the request is answered as the first HTTP/2 stream
+                    new Http2Connection(this, sock, in, out, buffer).upgrade(request.copy());
+                    break;
+                }
+                keepAlive = request.isKeepAlive() && served < MAX_KEEP_ALIVE_REQUESTS;
+                keepAlive = writeLimitedResponse(request, sock.getInetAddress(), out, keepAlive);
+                // only flush when no further pipelined request is waiting
+                if (!keepAlive || (!buffer.hasRemaining() && in.available() == 0))
+                    out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            BUFFERS.release(buffer);
+            metrics.connectionClosed();
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads more bytes from the stream into the buffer, behind the bytes that
+     * were not parsed yet
+     *
+     * @param buffer buffer in read mode, again in read mode afterwards
+     * @return false at the end of the stream
+     */
+    private boolean fill(InputStream in, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        try {
+            if (!buffer.hasRemaining())
+                throw new IOException("Request header too large");
+            int numRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (numRead < 0)
+                return false;
+            metrics.read(numRead);
+            buffer.position(buffer.position() + numRead);
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Counts the bytes of one response
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Creates and writes the response while holding one of the in-flight slots,
+     * if the number of requests is capped. A streamed body is produced while it
+     * is written, so the slot is held until the response is out.
+     * 
+     * @return whether the connection may stay open
+     */
+    private boolean writeLimitedResponse(Request request, InetAddress client, OutputStream out, boolean keepAlive)
+            throws IOException {
+        long start = System.nanoTime();
+        // an event stream stays open and mostly waits, it must not block a slot;
+        // the number of streams is capped by maxSubscribers instead
+        if (inFlight == null || isEventStream(request))
+            return respond(request, client, out, keepAlive);
+        try {
+            if (inFlight.tryAcquire(IN_FLIGHT_WAIT, TimeUnit.MILLISECONDS)) {
+                try {
+                    return respond(request, client, out, keepAlive);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.rejected();
+        Response response = new Response();
+        response.setStatus(503, "Service Unavailable");
+        response.setHeader("Retry-After", "1");
+        response.append("<html>Server is busy, please try again</html>");
+        return send(request, client, response, out, keepAlive, start);
+    }
+
+    /**
+     * The answer to a request head the parser cannot take, the connection is
+     * closed afterwards. Used by all engines.
+     *
+     * @param client address of the client, for the access log
+     * @return the whole response
+     */
+    byte[] badRequest(RequestParser.BadRequestException e, InetAddress client) {
+        Response response = new Response();
+        response.setStatus(e.status, e.reason);
+        response.append("<html>" + e.getMessage() + "</html>");
+        byte[] bytes = response.toBytes(false);
+        metrics.written(bytes.length);
+        if (accessLog != null)
+            accessLog.log(client, null, null, null, e.status, bytes.length, 0);
+        return bytes;
+    }
+
+    /**
+     * Answers a connection that could not be queued with a 503 and closes it. This
+     * runs on the accept thread so it does not read the request.
+     * 
+     * @param sock accepted client socket
+     */
+    private void rejectConnection(Socket sock) {
+        metrics.rejected();
+        try {
+            Response response = new Response();
+            response.setStatus(503, "Service Unavailable");
+            response.setHeader("Retry-After", "1");
+            response.append("<html>Server is busy, please try again</html>");
+            byte[] bytes = response.toBytes(false);
+            OutputStream out = sock.getOutputStream();
+            out.write(bytes);
+            out.flush();
+            metrics.written(bytes.length);
+            if (accessLog != null)
+                accessLog.log(sock.getInetAddress(), null, null, null, 503, bytes.length, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Used in the "/random" endpoint
      */
@@ -87,397 +599,748 @@ class WebServer {
     private Random random = new Random();
 
     /**
-     * Reads in socket stream and generates a response
-     * 
-     * @param inStream HTTP input stream from socket
-     * @return the byte encoded HTTP response
+     * Runs the connections, null handles them on the accept thread
      */
-    public byte[] createResponse(InputStream inStream) {
+    private final Executor connections;
 
-        byte[] response = null;
-        BufferedReader in = null;
+    /**
+     * Requests processed at the same time, 0 for no limit
+     */
+    private final int maxInFlight;
 
-        try {
+    /**
+     * The socket serve() accepts on, closed by stop()
+     */
+    private volatile ServerSocket listener = null;
+    private volatile boolean stopped = false;
 
-            // Read from socket's input stream. Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+    /**
+     * Watches www/ so cached pages are dropped when their files change
+     */
+    private final DirectoryWatcher www = new DirectoryWatcher(WWW);
 
-            // Get header and save the request from the GET line:
-            // example GET format: GET /index.html HTTP/1.1
+    /**
+     * The files in www/ for the root page, registered with the watcher before the
+     * cache so the cache is dropped only after the index has the change
+     */
+    private final DirectoryIndex index = new DirectoryIndex(WWW, www);
 
-            String request = null;
+    /**
+     * Ready to send bodies of the pages built from www/
+     */
+    private final StaticFileCache cache = new StaticFileCache(www, CACHE_BYTES);
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+    /**
+     * Caching GitHub client for /github, shares one upstream request between
+     * concurrent requests for the same query
+     */
+    private final GitHubClient github = new GitHubClient(GITHUB_API);
 
-                System.out.println("Received: " + line);
+    /**
+     * Recent chat messages, logged to CHAT_LOG. null if the log cannot be
+     * opened
+     */
+    private final ChatStore chat = openChat();
 
-                // find end of header("\n\n")
-                if (line == null || line.equals(""))
-                    done = true;
-                // parse GET format ("GET <path> HTTP/1.1")
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace + 1);
+    /**
+     * New chat messages as events for the subscribers of /chat/stream
+     */
+    final ChatBroadcast chatEvents = new ChatBroadcast();
 
-                    // extract the request, basically everything after the GET up to HTTP/1.1
-                    request = line.substring(firstSpace + 2, secondSpace);
-                }
+    /**
+     * Finds the handler for a request path
+     */
+    private final Router router = createRouter();
+
+    /**
+     * Limits the number of requests processed at the same time, null for no limit
+     */
+    private Semaphore inFlight = null;
+
+    /**
+     * One line per request, written in batches by a background thread. null if
+     * the log cannot be opened or is turned off
+     */
+    private final AccessLog accessLog = openAccessLog();
+
+    /**
+     * Requests per second and client: /github costs GitHub quota and may block a
+     * worker for long, /chat writes to disk
+     */
+    private final RateLimiter limiter = createLimiter();
+
+    /**
+     * Request counts, latencies and the like, shown by /metrics
+     */
+    final Metrics metrics = createMetrics();
 
+    /**
+     * Creates the response for the request, writes it and records it in the
+     * metrics and the access log. Used by all engines.
+     *
+     * @param client    address of the client, for the access log
+     * @param out       stream of the connection, flushed by the caller
+     * @param keepAlive whether the connection should stay open after this
+     *                  response
+     * @return whether the connection may stay open
+     */
+    boolean respond(Request request, InetAddress client, OutputStream out, boolean keepAlive) throws IOException {
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        try {
+            Response response;
+            try {
+                response = createResponse(request, client);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                response = new Response().setStatus(500, "Internal Server Error")
+                        .append("<html>ERROR: " + e.getMessage() + "</html>");
             }
-            System.out.println("FINISHED PARSING HEADER\n");
+            return send(request, client, response, out, keepAlive, start);
+        } finally {
+            metrics.requestFinished();
+        }
+    }
 
-            // Generate an appropriate response to the user
-            if (request == null) {
-                response = "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-                // create output buffer
-                StringBuilder builder = new StringBuilder();
-                // NOTE: output from buffer is at the end
-
-                if (request.length() == 0) {
-                    // shows the default directory page
-
-                    // opens the root.html file
-                    String page = new String(readFileInBytes(new File("www/root.html")));
-                    // performs a template replacement in the page
-                    page = page.replace("${links}", buildFileList());
-
-                    // Generate response
-                    builder.append("HTTP/1.1 200 OK\n");
-                    builder.append("Content-Type: text/html; charset=utf-8\n");
-                    builder.append("\n");
-                    builder.append(page);
-
-                } else if (request.equalsIgnoreCase("json")) {
-                    // shows the JSON of a random image and sets the header name for that image
-
-                    // pick a index from the map
-                    int index = random.nextInt(_images.size());
-
-                    // pull out the information
-                    String header = (String) _images.keySet().toArray()[index];
-                    String url = _images.get(header);
-
-                    // Generate response
-                    builder.append("HTTP/1.1 200 OK\n");
-                    builder.append("Content-Type: application/json; charset=utf-8\n");
-                    builder.append("\n");
-                    builder.append("{");
-                    builder.append("\"header\":\"").append(header).append("\",");
-                    builder.append("\"image\":\"").append(url).append("\"");
-                    builder.append("}");
-
-                } else if (request.equalsIgnoreCase("random")) {
-                    // opens the random image page
-
-                    // open the index.html
-                    File file = new File("www/index.html");
-
-                    // Generate response
-                    builder.append("HTTP/1.1 200 OK\n");
-                    builder.append("Content-Type: text/html; charset=utf-8\n");
-                    builder.append("\n");
-                    builder.append(new String(readFileInBytes(file)));
-
-                } else if (request.contains("file/")) {
-                    // tries to find the specified file and shows it or shows an error
-
-                    // take the path and clean it. try to open the file
-                    File file = new File(request.replace("file/", ""));
-
-                    // Generate response
-                    if (file.exists()) { // success
-                        builder.append("HTTP/1.1 200 OK\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append(
-                                "Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-                    } else { // failure
-                        builder.append("HTTP/1.1 404 Not Found\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("File not found: " + file);
-                    }
-                } else if (request.contains("multiply?")) {
-                    // This multiplies two numbers, there is NO error handling, so when
-                    // wrong data is given this just crashes
+    /**
+     * Answers one HTTP/2 stream, on a thread of the stream. Like an HTTP/1
+     * request it needs an in-flight slot if their number is capped.
+     *
+     * @param client address of the client, for the rate limits and the access
+     *               log
+     */
+    void respond(Request request, InetAddress client, Http2Connection.Stream stream) throws IOException {
+        writeLimitedResponse(request, client, stream, true);
+    }
 
-                    try {
-                        Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-                        // extract path parameters
-                        query_pairs = splitQuery(request.replace("multiply?", ""));
-
-                        // extract required fields from parameters
-                        Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-                        Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-
-                        // do math
-                        Integer result = num1 * num2;
-
-                        // Generate response
-                        builder.append("HTTP/1.1 200 OK\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("Result is: " + result);
-                        if (query_pairs.size() > 2)
-                            builder.append("""
-                                    <html>
-                                        <p>Extra values provided were ignored</p>
-                                    </html>
-                                    """);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-
-                        builder.append("HTTP/1.1 400 Bad Request\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                  <h3>An error occurred while processing your request.</h3>
-                                  <h4>Possible causes:</h4>
-                                  <ul>
-                                    <li>Integer value is too big</li>
-                                    <li>Value provided is not an integer</li>
-                                    <li>Incorrect use</li>
-                                  </ul>
-                                  <body>
-                                    Correct use:
-                                    <strong>/multiply?num1=X&num2=Y</strong>
-                                    , where 'X' and 'Y' are replaced by integers.
-                                  </body>
-                                </html>
-                                  """);
-                    }
-                } else if (request.contains("github?")) {
-                    // pulls the query from the request and runs it with GitHub's REST API
-                    // check out https://docs.github.com/rest/reference/
-                    //
-                    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-                    // then drill down to what you care about
-                    // "Owner's repo is named RepoName. Example: find RepoName's contributors"
-                    // translates to
-                    // "/repos/OWNERNAME/REPONAME/contributors"
+    /**
+     * Writes the response and records it, also if writing fails
+     *
+     * @param start System.nanoTime() when the request was complete
+     */
+    boolean send(Request request, InetAddress client, Response response, OutputStream out, boolean keepAlive,
+            long start) throws IOException {
+        CountingOutputStream counted = new CountingOutputStream(out);
+        try {
+            return response.write(counted, keepAlive, request);
+        } finally {
+            metrics.written(counted.count);
+            record(request, client, response.getStatus(), counted.count, start);
+        }
+    }
 
-                    try {
-                        Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-                        query_pairs = splitQuery(request.replace("github?", ""));
-
-                        if (!query_pairs.containsKey("query"))
-                            throw new InvalidParameterException();
-                        if (!query_pairs.get("query").startsWith("users")
-                                || !query_pairs.get("query").endsWith("repos"))
-                            throw new InvalidParameterException();
-
-                        String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-
-                        if (json.isEmpty())
-                            throw new NullPointerException();
-                        System.out.println(json);
-
-                        // Parse JSON
-                        String result = "";
-                        JSONArray jArray = new JSONArray(json);
-                        for (int i = 0; i < jArray.length(); i++) {
-                            JSONObject obj = jArray.getJSONObject(i);
-                            String repo = String.format("""
-                                    <html>
-                                        <h4>Repo #%d:</h4>
-                                        <ul>
-                                            <li><strong>Name:</strong> %s</li>
-                                            <li><strong>ID:</strong> %d</li>
-                                            <li><strong>Owner:</strong> %s</li>
-                                        </ul>
-                                        <br>
-                                    </html>
-                                        """, i,
-                                    obj.getString("name"),
-                                    obj.getBigInteger("id"),
-                                    obj.getJSONObject("owner").getString("login"));
-                            result += repo;
-                        }
-
-                        builder.append("HTTP/1.1 200 OK\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append(result);
-                    } catch (InvalidParameterException ipe) {
-                        ipe.printStackTrace();
-                        builder.append("HTTP/1.1 403 Forbidden\n");
-                        builder.append("Content-type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                    <h3>An error occurred while processing your request.</h3>
-                                    <h4>Possible causes:</h4>
-                                    <ul>
-                                        <li>Invalid or missing query</li>
-                                    </ul>
-                                    <p>Correct use:
-                                     <strong>/github?query=users/USER/repos</strong>
-                                      , where 'USER' is replaced by a GitHub user's name</p>
-                                </html>
-                                """);
-                    } catch (NullPointerException npe) {
-                        npe.printStackTrace();
-                        builder.append("HTTP/1.1 404 Not Found\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                    <h3>An error occurred while processing your request.</h3>
-                                    <h4>Possible causes:</h4>
-                                    <ul>
-                                        <li>Queried user does not exist.</li>
-                                        <li>Invalid query</li>
-                                    </ul>
-                                    <p>Correct use:
-                                     <strong>/github?query=users/USER/repos</strong>
-                                     , where 'USER' is replaced by a GitHub user's name.</p>
-                                </html>
-                                """);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        builder.append("HTTP/1.1 400 Bad Request\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                    <h3>An error occurred while processing your request.</h3>
-                                    <h4>Possible causes:</h4>
-                                    <ul>
-                                        <li>Missing argument</li>
-                                    </ul>
-                                    <p>Correct use:
-                                     <strong>/github?query=users/USER/repos</strong>
-                                     , where 'USER' is replaced by a GitHub user's name.</p>
-                                </html>
-
-                                    """);
-                    }
-                } else if (request.contains("compatible?")) {
-                    try {
-                        Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-                        query_pairs = splitQuery(request.replace("compatible?", ""));
-
-                        String name1 = query_pairs.get("name1");
-                        String name2 = query_pairs.get("name2");
-                        if (name1 == null || name2 == null)
-                            throw new Exception();
-                        Random random = new Random();
-                        double probability = random.nextDouble(100.00 - 20.0) + 20.0;
-                        if (name1.charAt(0) == name2.charAt(0))
-                            probability = probability + 10.0 > 100.0 ? 100.0 : probability + 10.0;
-                        if (name1.substring(name1.length() - 1).equals("a")
-                                || name2.substring(name2.length() - 1).equals("a"))
-                            probability = probability - 20.0 < 0.0 ? 0.0 : probability - 20.0;
-
-                        builder.append("HTTP/1.1 200 OK\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append(String.format("""
-                                <html>
-                                    <style>
-                                        p {text-align: center;}
-                                    </style>
-                                    <p>%s + %s</p>
-                                    <p style="font-size:50px;">%s</p>
-                                    <p>%.2f%%</p>
-                                    <p>Compatible</p>
-                                </html>
-
-                                    """, name1, name2, (probability > 50 ? "&#x1F496" : "&#128148"), probability));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        builder.append("HTTP/1.1 400 Bad Request\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                    <h3>An error occurred while processing your request.</h3>
-                                    <h4>Possible causes:</h4>
-                                    <ul>
-                                        <li>Invalid or missing arguments</li>
-                                    </ul>
-                                    <p>Correct use:
-                                     <strong>/compatible?name1=X&name2=Y</strong>
-                                      , where 'X' and 'Y' are replaced by a person's name.
-                                </html>
-
-                                    """);
-                    }
-                } else if (request.contains("chat?")) {
-                    try {
+    /**
+     * Records an answered request in the metrics and the access log
+     *
+     * @param bytes bytes sent
+     * @param start System.nanoTime() when the request was complete
+     */
+    void record(Request request, InetAddress client, int status, long bytes, long start) {
+        long nanos = System.nanoTime() - start;
+        metrics.record(request.getRoute(), status, nanos);
+        if (accessLog != null)
+            accessLog.log(client, request.getMethod(), request.getPath(), request.getVersion(), status, bytes,
+                    nanos);
+    }
 
-                        Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-                        query_pairs = splitQuery(request.replace("chat?", ""));
-
-                        String name = query_pairs.get("name");
-                        String msg = query_pairs.get("msg");
-                        if (name == null || name.isEmpty() || msg == null || msg.isEmpty())
-                            throw new Exception();
-                        String html = String.format("""
-                                <html>
-                                <p><strong>%s:</strong> %s</p>
-                                </html>
-                                        """, name, msg);
-                        FileWriter fileOut = new FileWriter("www/chat.html", true);
-                        fileOut.write(html);
-                        fileOut.close();
-
-                        FileReader fileIn = new FileReader("www/chat.html");
-                        String chat = "";
-                        int i;
-                        while ((i = fileIn.read()) != -1)
-                            chat += (char) i;
-                        fileIn.close();
-
-                        builder.append("HTTP/1.1 200 OK\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append(chat);
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        builder.append("HTTP/1.1 400 Bad Request\n");
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("\n");
-                        builder.append("""
-                                <html>
-                                    <h3>An error occurred while processing your request.</h3>
-                                    <h4>Possible causes:</h4>
-                                    <ul>
-                                        <li>Invalid or missing arguments</li>
-                                    </ul>
-                                    <p>Correct uses:
-                                     <strong>/chat?name=X&msg=Y</strong>
-                                      , where 'X' is replaced by your name and 'Y' by a message.
-                                </html>
-
-                                    """);
-                    }
+    /**
+     * @return true for a request that subscribes to the chat events (and stays
+     *         open)
+     */
+    boolean isEventStream(Request request) {
+        String path = request.getPath();
+        if (path == null || !request.isMethod("GET"))
+            return false;
+        Router.Route route = router.resolve(path);
+        return route != null && route.name.equals("/chat/stream");
+    }
+
+    /**
+     * @return the id of the last chat event the client has: the Last-Event-ID it
+     *         sent when it reconnects, otherwise the newest event (a new client
+     *         only gets the messages that come in after it subscribed)
+     */
+    long lastEventId(Request request) {
+        String lastEventId = request.getHeader("last-event-id");
+        if (lastEventId != null) {
+            try {
+                return Math.max(0, Long.parseLong(lastEventId.trim()));
+            } catch (NumberFormatException nfe) {
+                // a client of someone else's stream, start from now
+            }
+        }
+        return chatEvents.getLastId();
+    }
+
+    /**
+     * Generates the response for a parsed request
+     * 
+     * @param req    request read from the socket
+     * @param client address of the client, for the rate limits
+     * @return the response, encoded by the caller
+     */
+    public Response createResponse(Request req, InetAddress client) {
+
+        Response response = new Response();
+
+        try {
+
+            // the request is everything after the "GET /" up to HTTP/1.1
+            String request = req.getPath();
+
+            // Generate an appropriate response to the user
+            if (!req.isMethod("GET") || request == null) {
+                response.setStatus(400, "Bad Request");
+                response.append("<html>Illegal request: no GET</html>");
+            } else {
+                Router.Route route = router.resolve(request);
+                long wait = limiter.acquire(client, route != null ? route.name : null);
+                if (wait > 0) {
+                    if (route != null)
+                        req.setRoute(route.name);
+                    response = tooManyRequests(wait);
+                } else if (route != null) {
+                    req.setRoute(route.name);
+                    response = route.handler.handle(req);
                 } else {
-                    // if the request is not recognized at all
+                // if the request is not recognized at all
 
-                    builder.append("HTTP/1.1 400 Bad Request\n");
-                    builder.append("Content-Type: text/html; charset=utf-8\n");
-                    builder.append("\n");
-                    builder.append("I am not sure what you want me to do...");
+                response.setStatus(400, "Bad Request");
+                response.setContentType("text/html; charset=utf-8");
+                response.append("I am not sure what you want me to do...");
                 }
-
-                // Output
-                response = builder.toString().getBytes();
             }
         } catch (IOException e) {
             e.printStackTrace();
-            response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+            response = new Response();
+            response.setStatus(500, "Internal Server Error");
+            response.append("<html>ERROR: " + e.getMessage() + "</html>");
         }
 
         return response;
     }
 
+    /**
+     * The answer for a client that went over its rate limit
+     *
+     * @param wait nanoseconds until the client may send the next request
+     */
+    static Response tooManyRequests(long wait) {
+        Response response = new Response();
+        response.setStatus(429, "Too Many Requests");
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait - 1) + 1)));
+        response.append("<html>Too many requests, please slow down</html>");
+        return response;
+    }
+
+    /**
+     * Registers the handlers of all endpoints
+     */
+    private Router createRouter() {
+        return new Router()
+                .exact("", this::root)
+                .exact("json", this::json)
+                .exact("random", this::random)
+                .prefix("file/", this::file)
+                .exact("multiply", this::multiply)
+                .exact("github", this::github)
+                .exact("compatible", this::compatible)
+                .exact("chat", this::chat)
+                .exact("chat/stream", this::chatStream)
+                .exact("metrics", this::metrics);
+    }
+
+    /**
+     * Sets the rate limits, none with -DfunHttpServer.rateLimit=false
+     */
+    private static RateLimiter createLimiter() {
+        if (!Boolean.parseBoolean(System.getProperty("funHttpServer.rateLimit", "true")))
+            return new RateLimiter();
+        return new RateLimiter()
+                .limit("/github", GITHUB_RATE, 10)
+                .limit("/chat", CHAT_RATE, 20)
+                .limitOthers(DEFAULT_RATE, 200);
+    }
+
+    /**
+     * Registers the counters of the caches and the rate limits with the metrics
+     */
+    private Metrics createMetrics() {
+        Metrics metrics = new Metrics()
+                .counter("funhttp_rate_limited_total", "Requests answered with 429", limiter::getLimited)
+                .counter("funhttp_rate_untracked_total", "Requests not limited because too many clients were active",
+                        limiter::getUntracked)
+                .gauge("funhttp_rate_limited_clients", "Clients with a rate limit bucket", limiter::getClients);
+        if (accessLog != null) {
+            metrics.counter("funhttp_access_log_dropped_total", "Access log records dropped because the writer was behind",
+                    accessLog::getDropped);
+        }
+        return metrics
+                .gauge("funhttp_chat_subscribers", "Clients subscribed to /chat/stream", chatEvents::getSubscribers)
+                .counter("funhttp_static_cache_hits_total", "Pages served from the static file cache",
+                        cache::getHits)
+                .counter("funhttp_static_cache_misses_total", "Pages loaded into the static file cache",
+                        cache::getMisses)
+                .counter("funhttp_static_cache_evictions_total", "Pages evicted from the static file cache",
+                        cache::getEvictions)
+                .counter("funhttp_github_cache_hits_total", "GitHub queries answered from the cache",
+                        github::getHits)
+                .counter("funhttp_github_cache_misses_total", "GitHub queries sent to GitHub",
+                        github::getMisses)
+                .counter("funhttp_github_coalesced_total", "GitHub queries that waited for a running request",
+                        github::getCoalesced)
+                .counter("funhttp_github_revalidated_total", "Expired GitHub answers GitHub confirmed with a 304",
+                        github::getRevalidated);
+    }
+
+    /**
+     * / - the root page with the list of files in www/, ?sort=name|size|modified,
+     * order=desc and page=N choose which files are listed
+     */
+    private Response root(Request req) throws IOException {
+        Response response = new Response();
+        Map<String, String> parameters = req.getParameters();
+        DirectoryIndex.Sort sort = DirectoryIndex.Sort.of(parameters.get("sort"));
+        boolean descending = "desc".equals(parameters.get("order"));
+        int page = 1;
+        try {
+            page = Integer.parseInt(parameters.getOrDefault("page", "1"));
+        } catch (NumberFormatException e) {
+            // first page
+        }
+        // shows the default directory page
+        EncodedBody body = rootPage(sort, descending, Math.max(1, Math.min(page, index.pages())));
+
+        // Generate response
+        response.setStatus(200, "OK");
+        response.setContentType("text/html; charset=utf-8");
+        response.setBody(body);
+        return response;
+    }
+
+    /**
+     * The root page from the cache. It lists the whole directory, so it is
+     * rebuilt whenever anything in www/ changes, from the list the index keeps
+     */
+    private EncodedBody rootPage(DirectoryIndex.Sort sort, boolean descending, int page) throws IOException {
+        String key = sort == DirectoryIndex.Sort.NAME && !descending && page == 1 ? ""
+                : "?sort=" + sort.parameter() + (descending ? "&order=desc" : "") + "&page=" + page;
+        return cache.get(key, null, () -> {
+            // opens the root.html file
+            String template = new String(readFileInBytes(new File(WWW, "root.html")));
+            // performs a template replacement in the page
+            return template.replace("${links}", index.render(sort, descending, page)).getBytes(StandardCharsets.UTF_8);
+        });
+    }
+
+    /**
+     * The random image page (www/index.html) from the cache
+     */
+    private EncodedBody randomPage() throws IOException {
+        return cache.get("random", "index.html", () -> readFileInBytes(new File(WWW, "index.html")));
+    }
+
+    /**
+     * Loads and compresses the cached pages before the first request, so no
+     * client has to wait for it
+     */
+    private void precompress() {
+        try {
+            rootPage(DirectoryIndex.Sort.NAME, false, 1);
+            randomPage();
+        } catch (IOException e) {
+            Log.warn("Cannot load the pages in www/: " + e.getMessage());
+        }
+    }
+
+    /**
+     * /json - the JSON of a random image
+     */
+    private Response json(Request req) throws IOException {
+        Response response = new Response();
+        // shows the JSON of a random image and sets the header name for that image
+
+        // pick a index from the map
+        int index = random.nextInt(_images.size());
+
+        // pull out the information
+        String header = (String) _images.keySet().toArray()[index];
+        String url = _images.get(header);
+
+        // Generate response
+        response.setStatus(200, "OK");
+        response.setContentType("application/json; charset=utf-8");
+        response.append("{");
+        response.append("\"header\":\"").append(header).append("\",");
+        response.append("\"image\":\"").append(url).append("\"");
+        response.append("}");
+        return response;
+    }
+
+    /**
+     * /random - page showing a random image
+     */
+    private Response random(Request req) throws IOException {
+        Response response = new Response();
+        // opens the random image page (www/index.html)
+
+        // Generate response
+        response.setStatus(200, "OK");
+        response.setContentType("text/html; charset=utf-8");
+        response.setBody(randomPage());
+        return response;
+    }
+
+    /**
+     * /file/PATH - would show a file
+     */
+    private Response file(Request req) throws IOException {
+        Response response = new Response();
+        // tries to find the specified file and shows it or shows an error
+
+        // take the path and clean it. try to open the file
+        File file = new File(req.getPath().substring("file/".length()));
+
+        // Generate response
+        if (file.exists()) { // success
+            response.setStatus(200, "OK");
+            response.setContentType("text/html; charset=utf-8");
+            response.append(
+                    "Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
+        } else { // failure
+            response.setStatus(404, "Not Found");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("File not found: " + file);
+        }
+        return response;
+    }
+
+    /**
+     * /multiply?num1=X&num2=Y - multiplies two numbers
+     */
+    private Response multiply(Request req) throws IOException {
+        Response response = new Response();
+        // This multiplies two numbers, there is NO error handling, so when
+        // wrong data is given this just crashes
+
+        try {
+            // extract path parameters
+            Map<String, String> query_pairs = req.getParameters();
+
+            // extract required fields from parameters
+            Integer num1 = Integer.parseInt(query_pairs.get("num1"));
+            Integer num2 = Integer.parseInt(query_pairs.get("num2"));
+
+            // do math
+            Integer result = num1 * num2;
+
+            // Generate response
+            response.setStatus(200, "OK");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("Result is: " + result);
+            if (query_pairs.size() > 2)
+                response.append("""
+                        <html>
+                            <p>Extra values provided were ignored</p>
+                        </html>
+                        """);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            response.setStatus(400, "Bad Request");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                      <h3>An error occurred while processing your request.</h3>
+                      <h4>Possible causes:</h4>
+                      <ul>
+                        <li>Integer value is too big</li>
+                        <li>Value provided is not an integer</li>
+                        <li>Incorrect use</li>
+                      </ul>
+                      <body>
+                        Correct use:
+                        <strong>/multiply?num1=X&num2=Y</strong>
+                        , where 'X' and 'Y' are replaced by integers.
+                      </body>
+                    </html>
+                      """);
+        }
+        return response;
+    }
+
+    /**
+     * /github?query=users/USER/repos - the repos of a GitHub user
+     */
+    private Response github(Request req) throws IOException {
+        Response response = new Response();
+        // pulls the query from the request and runs it with GitHub's REST API
+        // check out https://docs.github.com/rest/reference/
+        //
+        // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+        // then drill down to what you care about
+        // "Owner's repo is named RepoName. Example: find RepoName's contributors"
+        // translates to
+        // "/repos/OWNERNAME/REPONAME/contributors"
+
+        try {
+            Map<String, String> query_pairs = req.getParameters();
+
+            if (!query_pairs.containsKey("query"))
+                throw new InvalidParameterException();
+            if (!query_pairs.get("query").startsWith("users")
+                    || !query_pairs.get("query").endsWith("repos"))
+                throw new InvalidParameterException();
+
+            String json = github.fetch(query_pairs.get("query"))
+                    .get(GitHubClient.TIMEOUT, TimeUnit.SECONDS);
+
+            if (json.isEmpty())
+                throw new NullPointerException();
+            Log.debug(json);
+
+            // Parse JSON, everything is checked before the page is sent
+            List<Object[]> repos = new ArrayList<>();
+            JSONArray jArray = new JSONArray(json);
+            for (int i = 0; i < jArray.length(); i++) {
+                JSONObject obj = jArray.getJSONObject(i);
+                repos.add(new Object[] { i,
+                        obj.getString("name"),
+                        obj.getBigInteger("id"),
+                        obj.getJSONObject("owner").getString("login") });
+            }
+
+            // users can have many repos, the page is sent repo by repo (chunked)
+            // instead of being built in memory first
+            response.setStatus(200, "OK");
+            response.setContentType("text/html; charset=utf-8");
+            response.setBody(out -> {
+                for (Object[] repo : repos) {
+                    out.write(String.format("""
+                            <html>
+                                <h4>Repo #%d:</h4>
+                                <ul>
+                                    <li><strong>Name:</strong> %s</li>
+                                    <li><strong>ID:</strong> %d</li>
+                                    <li><strong>Owner:</strong> %s</li>
+                                </ul>
+                                <br>
+                            </html>
+                                """, repo).getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        } catch (InvalidParameterException ipe) {
+            ipe.printStackTrace();
+            response.setStatus(403, "Forbidden");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                        <h3>An error occurred while processing your request.</h3>
+                        <h4>Possible causes:</h4>
+                        <ul>
+                            <li>Invalid or missing query</li>
+                        </ul>
+                        <p>Correct use:
+                         <strong>/github?query=users/USER/repos</strong>
+                          , where 'USER' is replaced by a GitHub user's name</p>
+                    </html>
+                    """);
+        } catch (NullPointerException npe) {
+            npe.printStackTrace();
+            response.setStatus(404, "Not Found");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                        <h3>An error occurred while processing your request.</h3>
+                        <h4>Possible causes:</h4>
+                        <ul>
+                            <li>Queried user does not exist.</li>
+                            <li>Invalid query</li>
+                        </ul>
+                        <p>Correct use:
+                         <strong>/github?query=users/USER/repos</strong>
+                         , where 'USER' is replaced by a GitHub user's name.</p>
+                    </html>
+                    """);
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.setStatus(400, "Bad Request");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                        <h3>An error occurred while processing your request.</h3>
+                        <h4>Possible causes:</h4>
+                        <ul>
+                            <li>Missing argument</li>
+                        </ul>
+                        <p>Correct use:
+                         <strong>/github?query=users/USER/repos</strong>
+                         , where 'USER' is replaced by a GitHub user's name.</p>
+                    </html>
+
+                        """);
+        }
+        return response;
+    }
+
+    /**
+     * /compatible?name1=X&name2=Y - how well two people fit together
+     */
+    private Response compatible(Request req) throws IOException {
+        Response response = new Response();
+        try {
+            Map<String, String> query_pairs = req.getParameters();
+
+            String name1 = query_pairs.get("name1");
+            String name2 = query_pairs.get("name2");
+            if (name1 == null || name2 == null)
+                throw new Exception();
+            Random random = new Random();
+            double probability = random.nextDouble(100.00 - 20.0) + 20.0;
+            if (name1.charAt(0) == name2.charAt(0))
+                probability = probability + 10.0 > 100.0 ? 100.0 : probability + 10.0;
+            if (name1.substring(name1.length() - 1).equals("a")
+                    || name2.substring(name2.length() - 1).equals("a"))
+                probability = probability - 20.0 < 0.0 ? 0.0 : probability - 20.0;
+
+            response.setStatus(200, "OK");
+            response.setContentType("text/html; charset=utf-8");
+            response.append(String.format("""
+                    <html>
+                        <style>
+                            p {text-align: center;}
+                        </style>
+                        <p>%s + %s</p>
+                        <p style="font-size:50px;">%s</p>
+                        <p>%.2f%%</p>
+                        <p>Compatible</p>
+                    </html>
+
+                        """, name1, name2, (probability > 50 ? "&#x1F496" : "&#128148"), probability));
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.setStatus(400, "Bad Request");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                        <h3>An error occurred while processing your request.</h3>
+                        <h4>Possible causes:</h4>
+                        <ul>
+                            <li>Invalid or missing arguments</li>
+                        </ul>
+                        <p>Correct use:
+                         <strong>/compatible?name1=X&name2=Y</strong>
+                          , where 'X' and 'Y' are replaced by a person's name.
+                    </html>
+
+                        """);
+        }
+        return response;
+    }
+
+    /**
+     * /chat?name=X&msg=Y - adds a message to the chat and shows it
+     */
+    private Response chat(Request req) throws IOException {
+        Response response = new Response();
+        try {
+
+            Map<String, String> query_pairs = req.getParameters();
+
+            String name = query_pairs.get("name");
+            String msg = query_pairs.get("msg");
+            if (name == null || name.isEmpty() || msg == null || msg.isEmpty())
+                throw new Exception();
+            if (chat == null)
+                throw new IOException("chat log not available");
+            chatEvents.publish(chat.append(name, msg));
+
+            response.setStatus(200, "OK");
+            response.setContentType("text/html; charset=utf-8");
+            response.setBody(chat.render());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.setStatus(400, "Bad Request");
+            response.setContentType("text/html; charset=utf-8");
+            response.append("""
+                    <html>
+                        <h3>An error occurred while processing your request.</h3>
+                        <h4>Possible causes:</h4>
+                        <ul>
+                            <li>Invalid or missing arguments</li>
+                        </ul>
+                        <p>Correct uses:
+                         <strong>/chat?name=X&msg=Y</strong>
+                          , where 'X' is replaced by your name and 'Y' by a message.
+                    </html>
+
+                        """);
+        }
+        return response;
+    }
+
+    /**
+     * /chat/stream - the chat messages that come in from now on, as Server-Sent
+     * Events for an EventSource. The response stays open until the client goes
+     * away; on the nio engine the event loop sends the events (see NioServer).
+     */
+    private Response chatStream(Request req) throws IOException {
+        Response response = new Response();
+        if (chatEvents.isFull()) {
+            response.setStatus(503, "Service Unavailable");
+            response.setHeader("Retry-After", "10");
+            response.append("<html>Too many chat subscribers, please try again</html>");
+            return response;
+        }
+        response.setStatus(200, "OK");
+        response.setContentType("text/event-stream; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setBody(chatEvents.new Subscription(lastEventId(req)));
+        return response;
+    }
+
+    /**
+     * /metrics - the server's metrics in the Prometheus text format
+     */
+    private Response metrics(Request req) throws IOException {
+        Response response = new Response();
+        response.setStatus(200, "OK");
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.append(metrics.render());
+        return response;
+    }
+
+    /**
+     * Opens the access log
+     *
+     * @return the log or null if it is turned off or cannot be opened
+     */
+    private static AccessLog openAccessLog() {
+        if (ACCESS_LOG.isEmpty())
+            return null;
+        try {
+            return new AccessLog(new File(ACCESS_LOG));
+        } catch (IOException e) {
+            Log.warn("Cannot open access log: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the chat log
+     *
+     * @return the store or null if the log cannot be opened
+     */
+    private static ChatStore openChat() {
+        try {
+            return new ChatStore(new File(CHAT_LOG));
+        } catch (IOException e) {
+            Log.warn("Cannot open chat log: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Method to read in a query and split it up correctly
      * 
@@ -499,31 +1362,6 @@ class WebServer {
         return query_pairs;
     }
 
-    /**
-     * Builds an HTML file list from the www directory
-     * 
-     * @return HTML string output of file list
-     */
-    public static String buildFileList() {
-        ArrayList<String> filenames = new ArrayList<>();
-
-        // Creating a File object for directory
-        File directoryPath = new File("www/");
-        filenames.addAll(Arrays.asList(directoryPath.list()));
-
-        if (filenames.size() > 0) {
-            StringBuilder builder = new StringBuilder();
-            builder.append("<ul>\n");
-            for (var filename : filenames) {
-                builder.append("<li>" + filename + "</li>");
-            }
-            builder.append("</ul>\n");
-            return builder.toString();
-        } else {
-            return "No files in directory";
-        }
-    }
-
     /**
      * Read bytes from a file and return them in the byte array. We read in blocks
      * of 512 bytes for efficiency.
@@ -551,7 +1389,7 @@ class WebServer {
      *
      * a method to make a web request. Note that this method will block execution
      * for up to 20 seconds while the request is being satisfied. Better to use a
-     * non-blocking request.
+     * non-blocking request, like GitHubClient does for /github.
      * 
      * @param aUrl the String indicating the query url for the OMDb api search
      * @return the String result of the http request.
@@ -570,17 +1408,18 @@ class WebServer {
                 in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
                 BufferedReader br = new BufferedReader(in);
                 if (br != null) {
-                    int ch;
-                    // read the next character until end of reader
-                    while ((ch = br.read()) != -1) {
-                        sb.append((char) ch);
+                    char[] buffer = new char[4096];
+                    int numRead;
+                    // read blocks of characters until end of reader
+                    while ((numRead = br.read(buffer)) != -1) {
+                        sb.append(buffer, 0, numRead);
                     }
                     br.close();
                 }
             }
             in.close();
         } catch (Exception ex) {
-            System.out.println("Exception in url request:" + ex.getMessage());
+            Log.warn("Exception in url request:" + ex.getMessage());
         }
         return sb.toString();
     }
@@ -0,0 +1,360 @@
+package httpServer;
+
+import java.io.*;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a file as HTTP response. Supports conditional requests (ETag /
+ * If-None-Match and Last-Modified / If-Modified-Since answered with 304 Not
+ * Modified) and byte ranges (Range answered with 206 Partial Content, several
+ * ranges as multipart/byteranges), so clients do not download a file again that
+ * they already have and can resume a download that broke off.
+ *
+ * The file content is read with positional reads or transferTo, so only the
+ * requested parts of the file are touched. With a MappedFileStore large files
+ * are written from a memory mapping instead.
+ */
+class FileResponse {
+
+    /**
+     * Parts up to this size are read into memory and written in one go, larger
+     * ones are streamed from the file to the socket with transferTo
+     */
+    public final static long SMALL_FILE = 64 * 1024;
+
+    /**
+     * More ranges than this in one request are ignored and the whole file is
+     * sent, to keep a client from asking for thousands of tiny pieces
+     */
+    public final static int MAX_RANGES = 16;
+
+    private final static String BOUNDARY = "FILE_RESPONSE_BOUNDARY";
+
+    private final static DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    /**
+     * Status and body length of a response that was sent, for the access log
+     */
+    public static class Sent {
+        public final int status;
+        public final long bytes;
+
+        Sent(int status, long bytes) {
+            this.status = status;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A requested range, both ends inclusive
+     */
+    static class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Writes the file, the part of it or the 304 that the request headers ask for
+     *
+     * @param file    existing file
+     * @param headers request headers with lower case names
+     * @param target  channel of the client socket
+     * @return what was sent
+     */
+    public static Sent write(File file, Map<String, String> headers, WritableByteChannel target)
+        throws IOException {
+
+        return write(file, headers, target, null);
+    }
+
+    /**
+     * Writes the file, the part of it or the 304 that the request headers ask for.
+     * Files larger than SMALL_FILE are sent from a mapping of the store.
+     *
+     * @param file    existing file
+     * @param headers request headers with lower case names
+     * @param target  channel of the client socket
+     * @param store   keeps large files mapped, null to use transferTo
+     * @return what was sent
+     */
+    public static Sent write(File file, Map<String, String> headers, WritableByteChannel target,
+        MappedFileStore store) throws IOException {
+
+        MappedFileStore.Mapping mapping = null;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            long lastModifiedMillis = file.lastModified();
+            // HTTP dates only have seconds
+            long modified = lastModifiedMillis / 1000 * 1000;
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+            String lastModified = HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneOffset.UTC));
+            String validators = "ETag: " + etag + "\r\n" +
+                                "Last-Modified: " + lastModified + "\r\n" +
+                                "Accept-Ranges: bytes\r\n";
+
+            if (notModified(headers, etag, modified)) {
+                writeFully(target, ByteBuffer.wrap(header("304 Not Modified", null, -1, validators)));
+                return new Sent(304, 0);
+            }
+
+            List<Range> ranges = null;
+            String range = headers.get("range");
+            if (range != null && rangeStillValid(headers.get("if-range"), etag, modified))
+                ranges = parseRanges(range, size);
+
+            if (store != null && size > SMALL_FILE && (ranges == null || !ranges.isEmpty()))
+                mapping = store.acquire(file, channel, size, lastModifiedMillis);
+
+            String type = contentType(file);
+            if (ranges == null) {
+                // no (usable) Range header, send everything
+                writeFully(target, ByteBuffer.wrap(header("200 OK", type, size, validators)));
+                sendPart(channel, mapping, 0, size, target);
+                return new Sent(200, size);
+            } else if (ranges.isEmpty()) {
+                writeFully(target, ByteBuffer.wrap(header("416 Range Not Satisfiable", null, 0,
+                        validators + "Content-Range: bytes */" + size + "\r\n")));
+                return new Sent(416, 0);
+            } else if (ranges.size() == 1) {
+                Range r = ranges.get(0);
+                writeFully(target, ByteBuffer.wrap(header("206 Partial Content", type, r.length(),
+                        validators + "Content-Range: bytes " + r.start + "-" + r.end + "/" + size + "\r\n")));
+                sendPart(channel, mapping, r.start, r.length(), target);
+                return new Sent(206, r.length());
+            } else {
+                return new Sent(206, writeMultipart(channel, mapping, ranges, size, type, validators, target));
+            }
+        } finally {
+            if (mapping != null)
+                mapping.release();
+        }
+    }
+
+    /**
+     * Several ranges are sent as multipart/byteranges, every part with its own
+     * Content-Range. The part headers are built first so the Content-Length of
+     * the whole body is known before sending.
+     *
+     * @return length of the body
+     */
+    private static long writeMultipart(FileChannel channel, MappedFileStore.Mapping mapping, List<Range> ranges,
+        long size, String type, String validators, WritableByteChannel target) throws IOException {
+
+        List<byte[]> partHeaders = new ArrayList<>();
+        long length = 0;
+        for (Range r : ranges) {
+            byte[] partHeader = ("--" + BOUNDARY + "\r\n" +
+                                 "Content-Type: " + type + "\r\n" +
+                                 "Content-Range: bytes " + r.start + "-" + r.end + "/" + size + "\r\n" +
+                                 "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            partHeaders.add(partHeader);
+            length += partHeader.length + r.length() + 2;
+        }
+        byte[] end = ("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        length += end.length;
+
+        writeFully(target, ByteBuffer.wrap(header("206 Partial Content",
+                "multipart/byteranges; boundary=" + BOUNDARY, length, validators)));
+        for (int i = 0; i < ranges.size(); i++) {
+            Range r = ranges.get(i);
+            writeFully(target, ByteBuffer.wrap(partHeaders.get(i)));
+            sendPart(channel, mapping, r.start, r.length(), target);
+            writeFully(target, ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        writeFully(target, ByteBuffer.wrap(end));
+        return length;
+    }
+
+    /**
+     * Checks If-None-Match, or If-Modified-Since if there is no If-None-Match
+     *
+     * @return true if the client's copy is still current
+     */
+    static boolean notModified(Map<String, String> headers, String etag, long modified) {
+        String noneMatch = headers.get("if-none-match");
+        if (noneMatch != null) {
+            for (String tag : noneMatch.split(",")) {
+                tag = tag.trim();
+                // weak comparison, W/"x" matches "x"
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        long since = parseDate(headers.get("if-modified-since"));
+        return since >= 0 && modified <= since;
+    }
+
+    /**
+     * A Range only applies if the If-Range validator (if any) still matches,
+     * otherwise the file changed and the client needs all of it
+     */
+    static boolean rangeStillValid(String ifRange, String etag, long modified) {
+        if (ifRange == null)
+            return true;
+        if (ifRange.startsWith("\""))
+            return ifRange.equals(etag);
+        return parseDate(ifRange) == modified;
+    }
+
+    /**
+     * Parses "bytes=0-99,200-,-50"
+     *
+     * @return null if the header is malformed or asks for too many ranges (the
+     *         whole file is sent), an empty list if no range is satisfiable,
+     *         otherwise the ranges clamped to the file size
+     */
+    static List<Range> parseRanges(String header, long size) {
+        if (!header.startsWith("bytes="))
+            return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+
+        List<Range> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0)
+                    return null;
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // suffix range: the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0)
+                        continue;
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if (end < start && !last.isEmpty() && Long.parseLong(last) < start)
+                        return null; // syntactically invalid
+                }
+                if (start < size && start <= end)
+                    ranges.add(new Range(start, end));
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Sends count bytes of the file starting at position. Small parts are read
+     * with a positional read into memory, large ones are written from the mapping
+     * if there is one, else streamed with transferTo (sendfile) without passing
+     * through the Java heap.
+     *
+     * @param mapping mapping of the whole file, may be null
+     */
+    static void sendPart(FileChannel file, MappedFileStore.Mapping mapping, long position, long count,
+        WritableByteChannel target) throws IOException {
+
+        if (mapping != null && count > SMALL_FILE) {
+            mapping.write(position, count, target);
+        } else if (count <= SMALL_FILE) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) count);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("File got shorter while sending it");
+            }
+            buffer.flip();
+            writeFully(target, buffer);
+        } else {
+            transferFully(file, position, count, target);
+        }
+    }
+
+    /**
+     * Transfers count bytes of the file starting at position. transferTo may send
+     * fewer bytes than asked for, so we loop until everything is out.
+     */
+    public static void transferFully(FileChannel file, long position, long count, WritableByteChannel target)
+        throws IOException {
+
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0 && position >= file.size())
+                throw new EOFException("File got shorter while sending it");
+            position += sent;
+        }
+    }
+
+    /**
+     * Writes the whole buffer, a channel write may only take part of it
+     */
+    public static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Status line and headers of a response
+     *
+     * @param contentType null for responses without a body type
+     * @param length      body length, negative for responses without a body
+     * @param extra       further header lines, each ending with \r\n
+     */
+    public static byte[] header(String status, String contentType, long length, String extra) {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null)
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        if (length >= 0)
+            head.append("Content-Length: ").append(length).append("\r\n");
+        head.append(extra);
+        head.append("Connection: close\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Guesses the content type from the file name
+     */
+    public static String contentType(File file) {
+        String type = URLConnection.guessContentTypeFromName(file.getName());
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    /**
+     * @return the HTTP date in ms or -1 if it is missing or cannot be parsed
+     */
+    private static long parseDate(String date) {
+        if (date == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package httpServer;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps large files mapped into memory (FileChannel.map), so a file that is
+ * asked for again is written from the page cache straight to the socket without
+ * opening, reading or copying it. A mapping costs address space, not heap: the
+ * pages are shared with the page cache and only loaded when they are sent.
+ *
+ * The store is bounded by the total size of the mappings. When a new file does
+ * not fit, the least recently used mappings are dropped. A mapping that is
+ * still being sent is only unmapped when the last request using it releases
+ * it, so unmapping never pulls the memory away under a running write.
+ * Unmapping uses Unsafe.invokeCleaner if the JVM has it, otherwise the mapping
+ * goes away when it is garbage collected.
+ *
+ * A file that changed (size or modification time) gets a new mapping, the old
+ * one is dropped. Truncating a file while it is being sent from a mapping
+ * crashes the write, so the store is meant for files that are replaced rather
+ * than rewritten in place.
+ */
+class MappedFileStore {
+    /**
+     * Default upper limit for all mappings together
+     */
+    public final static long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+
+    /**
+     * A single mapping can be at most 2 GB, larger files are mapped in chunks of
+     * this size
+     */
+    final static int CHUNK = 1 << 30;
+
+    /**
+     * Unsafe.invokeCleaner(ByteBuffer) and the Unsafe instance, null if the JVM
+     * does not have them
+     */
+    private final static Method INVOKE_CLEANER;
+    private final static Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Cannot unmap files explicitly, they are unmapped by the garbage collector");
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * A mapped file. Every user acquires it from the store and releases it when
+     * done.
+     */
+    public class Mapping {
+        final String path;
+        final long size;
+        final long modified;
+        private final MappedByteBuffer[] chunks;
+        // requests using the mapping, guarded by the store
+        private int references = 0;
+        // no longer in the store, unmapped when the last user releases it
+        private boolean dropped = false;
+
+        private Mapping(String path, long size, long modified, MappedByteBuffer[] chunks) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Writes count bytes of the file starting at position from the mapping
+         */
+        public void write(long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                int chunk = (int) (position / CHUNK);
+                // a duplicate has its own position and limit, the mapping is shared
+                ByteBuffer slice = chunks[chunk].duplicate();
+                int from = (int) (position - (long) chunk * CHUNK);
+                int to = (int) Math.min(slice.capacity(), end - (long) chunk * CHUNK);
+                slice.limit(to).position(from);
+                FileResponse.writeFully(target, slice);
+                position += to - from;
+            }
+        }
+
+        /**
+         * Gives the mapping back to the store
+         */
+        public void release() {
+            synchronized (MappedFileStore.this) {
+                references--;
+                if (dropped && references == 0)
+                    unmap(this);
+            }
+        }
+    }
+
+    private final long maxBytes;
+    // path to mapping, access ordered so the first one is the least recently used
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public MappedFileStore() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes upper limit for the size of all mappings
+     */
+    public MappedFileStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the mapping of the file, mapping it if it is not in the store or
+     * changed. The caller has to release it.
+     *
+     * @param file     the file
+     * @param channel  open channel of the file, used to map it
+     * @param size     size of the file when it was opened
+     * @param modified last modification of the file
+     * @return the mapping, null if the file is larger than the store
+     */
+    public Mapping acquire(File file, FileChannel channel, long size, long modified) throws IOException {
+        if (size > maxBytes)
+            return null;
+        String path = file.getCanonicalPath();
+        synchronized (this) {
+            Mapping mapping = mappings.get(path);
+            if (mapping != null && mapping.size == size && mapping.modified == modified) {
+                hits++;
+                mapping.references++;
+                return mapping;
+            }
+            misses++;
+            if (mapping != null)
+                drop(mappings.remove(path));
+        }
+
+        // mapping does not read the file, but it is a system call, so not under
+        // the lock
+        int count = (int) ((size + CHUNK - 1) / CHUNK);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * CHUNK;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK, size - position));
+        }
+        Mapping mapping = new Mapping(path, size, modified, chunks);
+        mapping.references = 1;
+
+        synchronized (this) {
+            Mapping other = mappings.get(path);
+            if (other != null && other.size == size && other.modified == modified) {
+                // another request mapped it in the meantime, use that one
+                other.references++;
+                mapping.dropped = true;
+                mapping.release();
+                return other;
+            }
+            if (other != null)
+                drop(mappings.remove(path));
+            mappings.put(path, mapping);
+            bytes += size;
+            evict();
+        }
+        return mapping;
+    }
+
+    /**
+     * Drops the least recently used mappings until the store is within its
+     * limit again
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Mapping>> it = mappings.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Mapping mapping = it.next().getValue();
+            it.remove();
+            drop(mapping);
+        }
+    }
+
+    /**
+     * Takes the mapping out of the store, it is unmapped now or when its last
+     * user is done
+     */
+    private void drop(Mapping mapping) {
+        bytes -= mapping.size;
+        mapping.dropped = true;
+        if (mapping.references == 0)
+            unmap(mapping);
+    }
+
+    private static void unmap(Mapping mapping) {
+        if (INVOKE_CLEANER == null)
+            return;
+        for (MappedByteBuffer chunk : mapping.chunks) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, chunk);
+            } catch (ReflectiveOperationException e) {
+                return; // left to the garbage collector
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return total size of the mapped files
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -2,115 +2,193 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import funHttpServer.AccessLog;
 
 class WebServer {
 
-    // 
+    /**
+     * One line per request, written in batches by a background thread. null if
+     * the log cannot be opened
+     */
+    private final AccessLog accessLog = openAccessLog();
+
+    /**
+     * Keeps large files mapped, null to stream them with transferTo
+     */
+    private MappedFileStore store = null;
+
+    //
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("mmap"))) {
+            System.out.println("Usage: WebServer <port> [mmap]");
             System.exit(1);
         }
-        
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+
+        WebServer server = args.length == 2 ? new WebServer(Integer.parseInt(args[0]), new MappedFileStore())
+                : new WebServer(Integer.parseInt(args[0]));
+    }
+
+    /**
+     * Serves large files from memory mappings that are kept in the store, so
+     * files that are asked for often are sent straight from the page cache
+     *
+     * @param store the mapped files
+     */
+    public WebServer(int port, MappedFileStore store) {
+        this.store = store;
+        System.out.println("Keeping up to " + (store.getMaxBytes() >> 20) + " MB of files mapped");
+        start(port);
     }
 
     public WebServer(int port) {
-        
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
+        start(port);
+    }
+
+    private void start(int port) {
+
+        ServerSocketChannel server = null;
+        SocketChannel       sock = null;
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
         //***   Get the response bytes from createResponse
         //***   Write the bytes to the socket's output stream
         //***   close streams and socket appropriatels
+        // We accept through a channel so every socket has a SocketChannel that
+        // files can be transferred to without copying them through the heap
+        // (see FileResponse).
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            while (true) {
+                sock = server.accept();
+                long start = System.nanoTime();
+                String filename = null;
+                int status = 0;
+                long bytes = -1;
+                try {
+                    InputStream in = sock.socket().getInputStream();
+                    Map<String, String> headers = new HashMap<>();
+                    filename = readFilename(in, headers);
+                    File file = filename == null ? null : new File(filename);
+                    if (file != null && file.isFile()) {
+                        FileResponse.Sent sent = FileResponse.write(file, headers, sock, store);
+                        status = sent.status;
+                        bytes = sent.bytes;
+                    } else {
+                        byte[] response = createResponse(filename);
+                        FileResponse.writeFully(sock, ByteBuffer.wrap(response));
+                        status = filename == null ? 400 : 404;
+                        bytes = response.length;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (accessLog != null)
+                        accessLog.log(sock.socket().getInetAddress(), filename != null ? "GET" : null, filename,
+                                null, status, bytes, System.nanoTime() - start);
+                    sock.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
+    /**
+     * Reads the request header and returns the requested file name
+     *
+     * @param headers gets the request headers, with lower case names
+     * @return the file name from the GET line or null if there was none
+     */
+    public String readFilename(InputStream inStream, Map<String, String> headers) throws IOException {
 
-    public byte[] createResponse(InputStream inStream) {
-
-        byte[] response = null;
         BufferedReader in = null;
 
-        try {
-
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        in = new BufferedReader(
+                    new InputStreamReader(inStream, "UTF-8"));
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            String filename = null;
+        String filename = null;
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        boolean done = false;
+        while (!done) {
+            String line = in.readLine();
 
-System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+            if (line == null || line.equals(""))
+                done = true;
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
-
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
-                }
+            else if (line.startsWith("GET")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace+1);
 
+                // skipt the leading / (our docroot is the current dir)
+                filename = line.substring(firstSpace+2, secondSpace);
             }
-System.out.println("FINISHED\n");
-
-
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+
+            else if (line.indexOf(':') > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon+1).trim());
             }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: " +
-                        e.getMessage() + "</html>").getBytes();
-        }
 
-        return response;
+        }
+        return filename;
     }
 
-    /** Read bytes from a file and return them in the byte array.
-        We read in blocks of 512 bytes for efficiency.
-    */
-    public static byte[] readFileInBytes(File f)
-        throws IOException {
-
-        FileInputStream file = new FileInputStream(f);
-        ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-        byte buffer[] = new byte[512];
-        int numRead = file.read(buffer);
-        while (numRead > 0) {
-            data.write(buffer, 0, numRead);
-            numRead = file.read(buffer);
+    /**
+     * Opens access.log in the working directory
+     *
+     * @return the log or null if it cannot be opened
+     */
+    private static AccessLog openAccessLog() {
+        try {
+            return new AccessLog(new File("access.log"));
+        } catch (IOException e) {
+            System.out.println("Cannot open access log: " + e.getMessage());
+            return null;
         }
-        file.close();
+    }
 
-        byte[] result =  data.toByteArray();
-        data.close();
+    /**
+     * Creates the response for requests that are not answered with a file
+     */
+    public byte[] createResponse(String filename) {
+
+        byte[] body;
+        String status;
+
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            status = "400 Bad Request";
+            body = "<html>Illegal request: no GET</html>".getBytes();
+        } else {
+            status = "404 Not Found";
+            body = ("<html>File not found: " +
+                    filename + "</html>").getBytes();
+        }
 
-        return result;
+        byte[] head = FileResponse.header(status, "text/html; charset=utf-8", body.length, "");
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return response;
     }
 }
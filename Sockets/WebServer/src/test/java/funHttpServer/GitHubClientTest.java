@@ -0,0 +1,89 @@
+package funHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GitHubClient against the local GitHubStub
+ */
+public class GitHubClientTest {
+
+    private GitHubStub stub;
+
+    @Before
+    public void startStub() throws IOException {
+        stub = new GitHubStub(0, 200);
+    }
+
+    @After
+    public void stopStub() {
+        stub.stop();
+    }
+
+    private static String get(CompletableFuture<String> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void answerWithinTheTtlComesFromTheCache() throws Exception {
+        GitHubClient client = new GitHubClient(stub.getUrl(), 60000);
+        String body = get(client.fetch("users/stub/repos"));
+        assertTrue(body.contains("\"repo\""));
+        assertEquals(body, get(client.fetch("users/stub/repos")));
+        assertEquals(1, stub.getRequests());
+        assertEquals(1, client.getMisses());
+        assertEquals(1, client.getHits());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneUpstreamRequest() throws Exception {
+        GitHubClient client = new GitHubClient(stub.getUrl(), 60000);
+        CompletableFuture<String> first = client.fetch("users/stub/repos");
+        CompletableFuture<String> second = client.fetch("users/stub/repos");
+        assertSame(first, second);
+        assertTrue(get(second).contains("\"repo\""));
+        assertEquals(1, stub.getRequests());
+        assertEquals(1, client.getCoalesced());
+    }
+
+    @Test
+    public void expiredAnswerIsRevalidatedWithItsEtag() throws Exception {
+        GitHubClient client = new GitHubClient(stub.getUrl(), 0);
+        String body = get(client.fetch("users/stub/repos"));
+        assertEquals(body, get(client.fetch("users/stub/repos")));
+        assertEquals(2, stub.getRequests());
+        assertEquals(1, stub.getNotModified());
+        assertEquals(1, client.getRevalidated());
+    }
+
+    @Test
+    public void invalidQueryFailsRightAway() throws Exception {
+        GitHubClient client = new GitHubClient(stub.getUrl(), 60000);
+        assertEquals("", get(client.fetch("users/a b/repos")));
+        // nothing is left in flight for the next request to wait for
+        assertEquals("", client.fetch("users/a b/repos").get(1, TimeUnit.SECONDS));
+        assertEquals(0, stub.getRequests());
+    }
+
+    @Test
+    public void unreachableServerAnswersEmpty() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        GitHubClient client = new GitHubClient("http://localhost:" + port + "/", 60000);
+        assertEquals("", get(client.fetch("users/stub/repos")));
+        // the failure is not cached, the next request asks again
+        assertEquals("", get(client.fetch("users/stub/repos")));
+        assertEquals(2, client.getMisses());
+        assertEquals(0, client.getHits());
+    }
+}
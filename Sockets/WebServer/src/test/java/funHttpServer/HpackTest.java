@@ -0,0 +1,249 @@
+package funHttpServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The examples of RFC 7541 Appendix C
+ */
+public class HpackTest {
+
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    private static List<String[]> decode(Hpack.Decoder decoder, String hex) throws IOException {
+        byte[] block = hex(hex);
+        return decoder.decode(block, 0, block.length);
+    }
+
+    /**
+     * @param expected name, value, name, value, ...
+     */
+    private static void assertHeaders(List<String[]> headers, String... expected) {
+        assertEquals(expected.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(expected[2 * i], headers.get(i)[0]);
+            assertEquals(expected[2 * i + 1], headers.get(i)[1]);
+        }
+    }
+
+    private static int readInt(String hex, int prefix) throws IOException {
+        byte[] block = hex(hex);
+        int[] pos = { 0 };
+        int value = Hpack.readInt(block, pos, block.length, prefix);
+        assertEquals(block.length, pos[0]);
+        return value;
+    }
+
+    private static String writeInt(int pattern, int prefix, int value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.writeInt(out, pattern, prefix, value);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : out.toByteArray())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // C.1 Integer Representation Examples
+
+    @Test
+    public void integers() throws IOException {
+        assertEquals("0a", writeInt(0, 5, 10));
+        assertEquals(10, readInt("0a", 5));
+        assertEquals("1f9a0a", writeInt(0, 5, 1337));
+        assertEquals(1337, readInt("1f9a0a", 5));
+        assertEquals("2a", writeInt(0, 8, 42));
+        assertEquals(42, readInt("2a", 8));
+    }
+
+    // C.2 Header Field Representation Examples
+
+    @Test
+    public void literalWithIndexing() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"),
+                "custom-key", "custom-header");
+        assertEquals(55, decoder.getTableSize());
+    }
+
+    @Test
+    public void literalWithoutIndexing() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"), ":path", "/sample/path");
+        assertEquals(0, decoder.getTableSize());
+    }
+
+    @Test
+    public void literalNeverIndexed() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"), "password", "secret");
+        assertEquals(0, decoder.getTableSize());
+    }
+
+    @Test
+    public void indexed() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "82"), ":method", "GET");
+        assertEquals(0, decoder.getTableSize());
+    }
+
+    // C.3 Request Examples without Huffman Coding
+
+    @Test
+    public void requestsWithoutHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertEquals(57, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertEquals(110, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertEquals(164, decoder.getTableSize());
+    }
+
+    // C.4 Request Examples with Huffman Coding
+
+    @Test
+    public void requestsWithHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertEquals(57, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertEquals(110, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertEquals(164, decoder.getTableSize());
+    }
+
+    // C.5 Response Examples without Huffman Coding, the table holds 256 bytes so
+    // entries get evicted
+
+    @Test
+    public void responsesWithoutHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertHeaders(decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230"
+                + "3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63"
+                + "6f6d"),
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "4803 3330 37c1 c0bf"),
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220"
+                + "474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851"
+                + "5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"),
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertEquals(215, decoder.getTableSize());
+    }
+
+    // C.6 Response Examples with Huffman Coding
+
+    @Test
+    public void responsesWithHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertHeaders(decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0"
+                + "82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"),
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "4883 640e ffc1 c0bf"),
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        assertHeaders(decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b"
+                + "d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160"
+                + "65c0 03ed 4ee5 b106 3d50 07"),
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertEquals(215, decoder.getTableSize());
+    }
+
+    // Huffman strings of C.4.1 and C.6.1 on their own
+
+    @Test
+    public void huffmanStrings() throws IOException {
+        byte[] authority = hex("f1e3 c2e5 f23a 6ba0 ab90 f4ff");
+        assertEquals("www.example.com", Hpack.huffmanDecode(authority, 0, authority.length));
+        byte[] date = hex("d07a be94 1054 d444 a820 0595 040b 8166 e082 a62d 1bff");
+        assertEquals("Mon, 21 Oct 2013 20:13:21 GMT", Hpack.huffmanDecode(date, 0, date.length));
+    }
+
+    private static void assertInvalidHuffman(String hex) {
+        byte[] data = hex(hex);
+        try {
+            Hpack.huffmanDecode(data, 0, data.length);
+            fail(hex + " is not valid Huffman");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void invalidHuffmanPadding() throws IOException {
+        // 'a' is 00011
+        byte[] a = hex("1f");
+        assertEquals("a", Hpack.huffmanDecode(a, 0, a.length));
+        // padded with zeros instead of ones
+        assertInvalidHuffman("18");
+        // padding longer than 7 bits
+        assertInvalidHuffman("1fff");
+    }
+
+    @Test
+    public void huffmanEosIsRejected() {
+        assertInvalidHuffman("ffff ffff");
+    }
+
+    @Test(expected = IOException.class)
+    public void indexOutOfTheTableIsRejected() throws IOException {
+        decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "be");
+    }
+
+    @Test
+    public void encoderRoundTrip() throws IOException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(":status", "200");
+        headers.put("content-type", "text/html; charset=utf-8");
+        headers.put("content-length", "1234");
+        headers.put("x-custom", "value");
+        for (int i = 0; i < 2; i++) {
+            byte[] block = encoder.encode(headers);
+            assertHeaders(decoder.decode(block, 0, block.length), ":status", "200",
+                    "content-type", "text/html; charset=utf-8", "content-length", "1234", "x-custom", "value");
+        }
+    }
+}
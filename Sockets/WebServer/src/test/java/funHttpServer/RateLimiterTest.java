@@ -0,0 +1,116 @@
+package funHttpServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimiter on a clock that only moves when the test says so
+ */
+public class RateLimiterTest {
+
+    private long now = 0;
+    private final RateLimiter limiter = new RateLimiter(() -> now);
+    private final InetAddress anna = address(1);
+    private final InetAddress bert = address(2);
+
+    private static InetAddress address(int last) {
+        try {
+            return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void burstIsLetThroughAtOnce() {
+        limiter.limit("/chat", 10, 3);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.acquire(anna, "/chat"));
+        assertTrue(limiter.acquire(anna, "/chat") > 0);
+        // every client has a bucket of its own
+        assertEquals(0, limiter.acquire(bert, "/chat"));
+        assertEquals(1, limiter.getLimited());
+    }
+
+    @Test
+    public void tokenIsBackAfterTheEmissionInterval() {
+        limiter.limit("/chat", 10, 3);
+        for (int i = 0; i < 3; i++)
+            limiter.acquire(anna, "/chat");
+        advance(99);
+        assertTrue(limiter.acquire(anna, "/chat") > 0);
+        advance(1);
+        assertEquals(0, limiter.acquire(anna, "/chat"));
+        assertTrue(limiter.acquire(anna, "/chat") > 0);
+        // idle for longer than the whole bucket takes, it is full but not more
+        advance(10000);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.acquire(anna, "/chat"));
+        assertTrue(limiter.acquire(anna, "/chat") > 0);
+    }
+
+    @Test
+    public void waitIsTheTimeUntilTheNextToken() {
+        limiter.limit("/github", 0.5, 1);
+        assertEquals(0, limiter.acquire(anna, "/github"));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.acquire(anna, "/github"));
+        advance(1500);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.acquire(anna, "/github"));
+    }
+
+    @Test
+    public void retryAfterIsRoundedUpToWholeSeconds() {
+        assertRetryAfter("1", 1);
+        assertRetryAfter("1", TimeUnit.MILLISECONDS.toNanos(100));
+        assertRetryAfter("1", TimeUnit.SECONDS.toNanos(1));
+        assertRetryAfter("2", TimeUnit.SECONDS.toNanos(1) + 1);
+        limiter.limit("/github", 0.5, 1);
+        limiter.acquire(anna, "/github");
+        assertRetryAfter("2", limiter.acquire(anna, "/github"));
+    }
+
+    private static void assertRetryAfter(String seconds, long wait) {
+        Response response = WebServer.tooManyRequests(wait);
+        assertEquals(429, response.getStatus());
+        String head = new String(response.toHead(), StandardCharsets.ISO_8859_1);
+        assertTrue(head, head.contains("\r\nRetry-After: " + seconds + "\r\n"));
+    }
+
+    @Test
+    public void routesWithoutLimitAreNotLimited() {
+        limiter.limit("/chat", 10, 1);
+        for (int i = 0; i < 100; i++)
+            assertEquals(0, limiter.acquire(anna, "/json"));
+        limiter.limitOthers(10, 1);
+        assertEquals(0, limiter.acquire(anna, "/json"));
+        assertTrue(limiter.acquire(anna, null) > 0);
+    }
+
+    @Test
+    public void sweepDropsIdleClientsAndKeepsActiveOnes() {
+        limiter.limit("/chat", 10, 3);
+        limiter.acquire(anna, "/chat");
+        advance(1000);
+        // bert keeps asking until the next sweep, anna's bucket is full by now
+        for (int i = 1; i < 4095; i++)
+            limiter.acquire(bert, "/chat");
+        assertEquals(2, limiter.getClients());
+        assertTrue(limiter.acquire(bert, "/chat") > 0);
+        assertEquals(1, limiter.getClients());
+        // bert's bucket is still empty, anna starts with a full one again
+        assertTrue(limiter.acquire(bert, "/chat") > 0);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.acquire(anna, "/chat"));
+        assertTrue(limiter.acquire(anna, "/chat") > 0);
+    }
+}
@@ -0,0 +1,160 @@
+package funHttpServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class RequestParserTest {
+
+    private final RequestParser parser = new RequestParser();
+    private final ByteBuffer buffer = ByteBuffer.allocate(Request.MAX_HEADER);
+
+    public RequestParserTest() {
+        buffer.flip(); // nothing read yet
+    }
+
+    /**
+     * Appends the bytes like a read from the socket does and parses
+     */
+    private Request feed(String bytes) throws IOException {
+        buffer.compact();
+        buffer.put(bytes.getBytes(StandardCharsets.ISO_8859_1));
+        buffer.flip();
+        return parser.parse(buffer);
+    }
+
+    @Test
+    public void simpleRequest() throws IOException {
+        Request request = feed("GET /json?x=1 HTTP/1.1\r\nHost: localhost\r\nAccept:  text/html \r\n\r\n");
+        assertNotNull(request);
+        assertEquals("GET", request.getMethod());
+        assertEquals("json?x=1", request.getPath());
+        assertEquals("x=1", request.getQuery());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("localhost", request.getHeader("host"));
+        assertEquals("text/html", request.getHeader("ACCEPT"));
+        assertTrue(request.isKeepAlive());
+        assertFalse(buffer.hasRemaining());
+        assertFalse(parser.isPartial());
+    }
+
+    @Test
+    public void requestLineSplitAcrossReads() throws IOException {
+        assertNull(feed("GE"));
+        assertNull(feed("T /ran"));
+        assertTrue(parser.isPartial());
+        assertNull(feed("dom HTTP/1.1\r"));
+        Request request = feed("\nHost: a\r\n\r\n");
+        assertNotNull(request);
+        assertEquals("random", request.getPath());
+        assertEquals("a", request.getHeader("host"));
+    }
+
+    @Test
+    public void headersSplitAcrossReads() throws IOException {
+        assertNull(feed("GET / HTTP/1.1\r\nHo"));
+        assertNull(feed("st: exam"));
+        assertNull(feed("ple.com\r\nConnection: cl"));
+        assertNull(feed("ose\r\n\r"));
+        Request request = feed("\n");
+        assertNotNull(request);
+        assertEquals("example.com", request.getHeader("host"));
+        assertFalse(request.isKeepAlive());
+    }
+
+    @Test
+    public void everyByteInItsOwnRead() throws IOException {
+        String head = "GET /chat?name=a&msg=b HTTP/1.1\r\nHost: x\r\n\r\n";
+        for (int i = 0; i < head.length() - 1; i++)
+            assertNull(feed(head.substring(i, i + 1)));
+        Request request = feed(head.substring(head.length() - 1));
+        assertNotNull(request);
+        assertEquals("chat?name=a&msg=b", request.getPath());
+        assertEquals("b", request.getParameters().get("msg"));
+        assertEquals("x", request.getHeader("host"));
+    }
+
+    @Test
+    public void pipelinedRequestsInOneBuffer() throws IOException {
+        Request first = feed("GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b HTTP/1.1\r\nHost: y\r\n\r\n");
+        assertEquals("a", first.getPath());
+        assertEquals("x", first.getHeader("host"));
+        assertTrue(buffer.hasRemaining());
+        Request second = parser.parse(buffer);
+        assertNotNull(second);
+        assertEquals("b", second.getPath());
+        assertEquals("y", second.getHeader("host"));
+        assertFalse(buffer.hasRemaining());
+        assertNull(parser.parse(buffer));
+    }
+
+    @Test
+    public void bodyIsSkippedByContentLength() throws IOException {
+        Request post = feed("POST /a HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123");
+        assertEquals("POST", post.getMethod());
+        assertEquals(10, post.getContentLength());
+        // the rest of the body comes with the next request
+        assertNull(parser.parse(buffer));
+        assertTrue(parser.isPartial());
+        Request next = feed("456789GET /b HTTP/1.1\r\n\r\n");
+        assertNotNull(next);
+        assertEquals("GET", next.getMethod());
+        assertEquals("b", next.getPath());
+    }
+
+    @Test
+    public void bareLineFeeds() throws IOException {
+        Request request = feed("GET /json HTTP/1.0\nHost: x\nConnection: keep-alive\n\n");
+        assertNotNull(request);
+        assertEquals("json", request.getPath());
+        assertEquals("HTTP/1.0", request.getVersion());
+        assertEquals("x", request.getHeader("host"));
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void emptyLinesBetweenRequestsAreSkipped() throws IOException {
+        assertEquals("a", feed("GET /a HTTP/1.1\r\n\r\n").getPath());
+        assertEquals("b", feed("\r\n\r\nGET /b HTTP/1.1\r\n\r\n").getPath());
+    }
+
+    @Test
+    public void tooLargeHeadIs431() throws IOException {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (head.length() < Request.MAX_HEADER)
+            head.append("X-Filler: 0123456789abcdef\r\n");
+        try {
+            feed(head.substring(0, Request.MAX_HEADER));
+            fail("head larger than the buffer was accepted");
+        } catch (RequestParser.BadRequestException e) {
+            assertEquals(431, e.status);
+        }
+    }
+
+    @Test
+    public void tooManyHeadersIs431() throws IOException {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= Request.MAX_HEADERS; i++)
+            head.append("X:").append(i).append("\n");
+        try {
+            feed(head.append("\r\n").toString());
+            fail("more than MAX_HEADERS headers were accepted");
+        } catch (RequestParser.BadRequestException e) {
+            assertEquals(431, e.status);
+        }
+    }
+
+    @Test
+    public void invalidContentLengthIs400() throws IOException {
+        try {
+            feed("POST / HTTP/1.1\r\nContent-Length: ten\r\n\r\n");
+            fail("Content-Length that is no number was accepted");
+        } catch (RequestParser.BadRequestException e) {
+            assertEquals(400, e.status);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package httpServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FileResponseTest {
+
+    private final static String ETAG = "\"64-18b3a1c5e00\"";
+    // Wed, 18 Oct 2023 12:00:00 GMT
+    private final static long MODIFIED = 1697630400000L;
+    private final static String DATE = "Wed, 18 Oct 2023 12:00:00 GMT";
+
+    private static void assertRange(FileResponse.Range range, long start, long end) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+    @Test
+    public void singleRange() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=0-9", 100);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+        assertEquals(10, ranges.get(0).length());
+    }
+
+    @Test
+    public void openEndedRange() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=90-", 100);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 90, 99);
+    }
+
+    @Test
+    public void endIsClampedToTheFileSize() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=50-5000", 100);
+        assertRange(ranges.get(0), 50, 99);
+    }
+
+    @Test
+    public void suffixRange() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=-10", 100);
+        assertRange(ranges.get(0), 90, 99);
+    }
+
+    @Test
+    public void suffixLongerThanTheFileIsTheWholeFile() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=-500", 100);
+        assertRange(ranges.get(0), 0, 99);
+    }
+
+    @Test
+    public void emptySuffixIsNotSatisfiable() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=-0", 100);
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void startBehindTheEndIsNotSatisfiable() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=100-", 100);
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void unsatisfiableRangesAreDropped() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=200-300, 0-0", 100);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), 0, 0);
+    }
+
+    @Test
+    public void severalRanges() {
+        List<FileResponse.Range> ranges = FileResponse.parseRanges("bytes=0-9, 20-29,-5", 100);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), 0, 9);
+        assertRange(ranges.get(1), 20, 29);
+        assertRange(ranges.get(2), 95, 99);
+    }
+
+    @Test
+    public void reversedRangeIgnoresTheHeader() {
+        assertNull(FileResponse.parseRanges("bytes=9-0", 100));
+    }
+
+    @Test
+    public void malformedRangesIgnoreTheHeader() {
+        assertNull(FileResponse.parseRanges("items=0-9", 100));
+        assertNull(FileResponse.parseRanges("bytes=5", 100));
+        assertNull(FileResponse.parseRanges("bytes=a-b", 100));
+        assertNull(FileResponse.parseRanges("bytes=-", 100));
+    }
+
+    @Test
+    public void tooManyRangesIgnoreTheHeader() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < FileResponse.MAX_RANGES; i++)
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        assertEquals(FileResponse.MAX_RANGES, FileResponse.parseRanges(header.toString(), 100).size());
+        header.append(",99-99");
+        assertNull(FileResponse.parseRanges(header.toString(), 100));
+    }
+
+    @Test
+    public void noValidatorsIsModified() {
+        assertFalse(FileResponse.notModified(new HashMap<>(), ETAG, MODIFIED));
+    }
+
+    @Test
+    public void matchingEtagIsNotModified() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-none-match", ETAG);
+        assertTrue(FileResponse.notModified(headers, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void weakEtagMatches() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-none-match", "\"other\", W/" + ETAG);
+        assertTrue(FileResponse.notModified(headers, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void starMatchesAnyEtag() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-none-match", "*");
+        assertTrue(FileResponse.notModified(headers, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void otherEtagIsModifiedEvenIfTheDateMatches() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-none-match", "\"other\"");
+        headers.put("if-modified-since", DATE);
+        assertFalse(FileResponse.notModified(headers, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void ifModifiedSince() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("if-modified-since", DATE);
+        assertTrue(FileResponse.notModified(headers, ETAG, MODIFIED));
+        assertFalse(FileResponse.notModified(headers, ETAG, MODIFIED + 1000));
+        headers.put("if-modified-since", "yesterday");
+        assertFalse(FileResponse.notModified(headers, ETAG, MODIFIED));
+    }
+
+    @Test
+    public void ifRange() {
+        assertTrue(FileResponse.rangeStillValid(null, ETAG, MODIFIED));
+        assertTrue(FileResponse.rangeStillValid(ETAG, ETAG, MODIFIED));
+        assertFalse(FileResponse.rangeStillValid("\"other\"", ETAG, MODIFIED));
+        assertTrue(FileResponse.rangeStillValid(DATE, ETAG, MODIFIED));
+        assertFalse(FileResponse.rangeStillValid(DATE, ETAG, MODIFIED + 1000));
+    }
+
+    @Test
+    public void ifRangeNeedsAStrongEtag() {
+        assertFalse(FileResponse.rangeStillValid("W/" + ETAG, ETAG, MODIFIED));
+    }
+}